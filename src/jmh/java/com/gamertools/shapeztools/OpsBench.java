@@ -0,0 +1,132 @@
+package com.gamertools.shapeztools;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntBinaryOperator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * OpsBench
+ *
+ * JMH benchmarks of the Ops kernels, each op in its own forked JVM.
+ * - Inputs are valid shapes of 1 to 4 layers, equally likely, as in Tests.randomLayers().
+ * - single runs on one thread and multi on every processor. invoke goes through Ops.invoke() as the Solver does.
+ * - main() adds the GC profiler for allocation rates and takes the usual JMH options, for example
+ * java -jar target/benchmarks.jar -p opName=STACK
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OpsBench {
+
+  private static final int SIZE = 4096;
+  private static final int[] LAYER_MASKS = { 0x000f000f, 0x00ff00ff, 0x0fff0fff, 0xffffffff };
+
+  @Param({ "NOP", "ROTATE_RIGHT", "ROTATE_180", "ROTATE_LEFT", "CUT_RIGHT", "CUT_LEFT", "PINPUSH", "CRYSTAL",
+      "SWAP_RIGHT", "SWAP_LEFT", "FAST_SWAP", "STACK" })
+  public String opName;
+
+  private Ops.Name name;
+  private IntBinaryOperator op;
+  private final int[] shapes1 = new int[SIZE];
+  private final int[] shapes2 = new int[SIZE];
+
+  @Setup
+  public void setup() {
+    name = Ops.Name.valueOf(opName);
+    op = kernel(name);
+    Random rng = new Random(Thread.currentThread().getId());
+    for (int i = 0; i < SIZE; ++i) {
+      shapes1[i] = randomShape(rng);
+      shapes2[i] = randomShape(rng);
+    }
+  }
+
+  private static int randomShape(Random rng) {
+    int shape;
+    do {
+      shape = rng.nextInt() & LAYER_MASKS[rng.nextInt(LAYER_MASKS.length)];
+    } while (!Shape.isValid(shape));
+    return shape;
+  }
+
+  private static IntBinaryOperator kernel(Ops.Name opName) {
+    switch (opName) {
+    case NOP:
+      return (shape1, shape2) -> Ops.nop(shape1);
+    case ROTATE_RIGHT:
+      return (shape1, shape2) -> Ops.rotateRight(shape1);
+    case ROTATE_180:
+      return (shape1, shape2) -> Ops.rotate180(shape1);
+    case ROTATE_LEFT:
+      return (shape1, shape2) -> Ops.rotateLeft(shape1);
+    case CUT_RIGHT:
+      return (shape1, shape2) -> Ops.cutRight(shape1);
+    case CUT_LEFT:
+      return (shape1, shape2) -> Ops.cutLeft(shape1);
+    case PINPUSH:
+      return (shape1, shape2) -> Ops.pinPush(shape1);
+    case CRYSTAL:
+      return (shape1, shape2) -> Ops.crystal(shape1);
+    case SWAP_RIGHT:
+      return Ops::swapRight;
+    case SWAP_LEFT:
+      return Ops::swapLeft;
+    case FAST_SWAP:
+      return Ops::fastSwap;
+    case STACK:
+      return Ops::stack;
+    default:
+      throw new IllegalArgumentException("Unknown op name: " + opName);
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SIZE)
+  public void single(Blackhole blackhole) {
+    for (int i = 0; i < SIZE; ++i)
+      blackhole.consume(op.applyAsInt(shapes1[i], shapes2[i]));
+  }
+
+  @Benchmark
+  @Threads(Threads.MAX)
+  @OperationsPerInvocation(SIZE)
+  public void multi(Blackhole blackhole) {
+    for (int i = 0; i < SIZE; ++i)
+      blackhole.consume(op.applyAsInt(shapes1[i], shapes2[i]));
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SIZE)
+  public void invoke(Blackhole blackhole) {
+    for (int i = 0; i < SIZE; ++i)
+      blackhole.consume(Ops.invoke(name, shapes1[i], shapes2[i]));
+  }
+
+  public static void main(String[] args) throws Exception {
+    new Runner(new OptionsBuilder().parent(new CommandLineOptions(args)).include(OpsBench.class.getSimpleName())
+        .addProfiler(GCProfiler.class).build()).run();
+  }
+
+}
@@ -0,0 +1,341 @@
+package com.gamertools.shapeztools;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * BuildLog
+ *
+ * Append-only binary log of the builds a Solver stores, new and improved, in the order they are found.
+ * - Records use the ShapeDB binary layout: shape | shape1 | shape2 | op ordinal | orient | cost (16 bits).
+ * - Each thread fills its own buffer, full buffers are appended to the file under a lock. flush() writes the rest
+ * and is called between batches, when no thread is adding builds.
+ * - A record cut short by a crash is ignored when the log is read, and cut off when the log is opened to append.
+ * - compact() folds a log into sorted SDBXY shard files, keeping the cheapest build of each shape.
+ */
+class BuildLog implements AutoCloseable {
+
+  private static final int MAGIC = 0x535a424c; // SZBL
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int RECORD_SIZE = ShapeDB.RECORD_SIZE;
+  private static final int THREAD_BUFFER_SIZE = RECORD_SIZE * 4096;
+  private static final int READ_BUFFER_SIZE = 1 << 20;
+  private static final int SPILL_BUFFER_SIZE = RECORD_SIZE * 4096;
+  private static final int NUM_SHARDS = 256;
+  private static final Ops.Name[] OP_NAMES = Ops.Name.values();
+
+  interface Visitor {
+    void accept(int shape, int cost, Ops.Name opName, int shape1, int shape2, int orient);
+  }
+
+  private final FileChannel channel;
+  private final List<ByteBuffer> buffers = Collections.synchronizedList(new ArrayList<>());
+  private final ThreadLocal<ByteBuffer> threadBuffer = ThreadLocal.withInitial(() -> {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(THREAD_BUFFER_SIZE);
+    buffers.add(buffer);
+    return buffer;
+  });
+  private long size;
+
+  private BuildLog(FileChannel channel, long size) {
+    this.channel = channel;
+    this.size = size;
+  }
+
+  /**
+   * Open a log for writing.
+   *
+   * @param append keep the builds already in the log, which must be for the same layers and mode
+   */
+  static BuildLog open(String name, int layers, boolean canonical, boolean append) throws IOException {
+    Path path = Paths.get(name);
+    if (path.toAbsolutePath().getParent() != null)
+      Files.createDirectories(path.toAbsolutePath().getParent());
+    if (append && Files.exists(path)) {
+      FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      int[] header = readHeader(channel, name);
+      if ((header[0] != layers) || (header[1] != (canonical ? Solver.CANONICAL_MODE : 0))) {
+        channel.close();
+        throw new IOException("Build log is for a different solver: " + name);
+      }
+      long records = (channel.size() - HEADER_SIZE) / RECORD_SIZE;
+      long size = HEADER_SIZE + records * RECORD_SIZE;
+      channel.truncate(size);
+      channel.position(size);
+      System.out.printf("Appending to build log %s, %,d builds\n", name, records);
+      return new BuildLog(channel, size);
+    }
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putInt(MAGIC).putInt(VERSION).putInt(layers).putInt(canonical ? Solver.CANONICAL_MODE : 0).flip();
+    while (header.hasRemaining())
+      channel.write(header);
+    return new BuildLog(channel, HEADER_SIZE);
+  }
+
+  /**
+   * @return layers and mode, 0 or Solver.CANONICAL_MODE
+   */
+  private static int[] readHeader(FileChannel channel, String name) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    while (header.hasRemaining() && (channel.read(header, header.position()) >= 0))
+      ;
+    header.flip();
+    if ((header.remaining() < HEADER_SIZE) || (header.getInt() != MAGIC))
+      throw new IOException("Not a build log: " + name);
+    int version = header.getInt();
+    if (version != VERSION)
+      throw new IOException("Unknown build log version: " + version);
+    return new int[] { header.getInt(), header.getInt() };
+  }
+
+  /**
+   * Add a build, called from any thread.
+   */
+  void add(int shape, int cost, Ops.Name opName, int shape1, int shape2, int orient) {
+    ByteBuffer buffer = threadBuffer.get();
+    if (!buffer.hasRemaining())
+      write(buffer);
+    buffer.putInt(shape).putInt(shape1).putInt(shape2);
+    buffer.put((byte) opName.ordinal()).put((byte) orient).putShort((short) cost);
+  }
+
+  private synchronized void write(ByteBuffer buffer) {
+    buffer.flip();
+    try {
+      while (buffer.hasRemaining())
+        size += channel.write(buffer);
+    } catch (IOException e) {
+      System.err.println("Error writing build log");
+      e.printStackTrace();
+    }
+    buffer.clear();
+  }
+
+  /**
+   * Write the builds in all thread buffers and force them to disk. No thread may add builds while this runs.
+   */
+  void flush() {
+    synchronized (buffers) {
+      for (ByteBuffer buffer : buffers)
+        write(buffer);
+    }
+    try {
+      channel.force(false);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * @return number of builds written to the file
+   */
+  synchronized long size() {
+    return (size - HEADER_SIZE) / RECORD_SIZE;
+  }
+
+  @Override
+  public void close() {
+    flush();
+    try {
+      channel.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Read every complete record of a log, in order.
+   */
+  static void forEach(String name, Visitor visitor) throws IOException {
+    try (FileChannel channel = FileChannel.open(Paths.get(name), StandardOpenOption.READ)) {
+      readHeader(channel, name);
+      channel.position(HEADER_SIZE);
+      ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+      while (channel.read(buffer) >= 0) {
+        buffer.flip();
+        while (buffer.remaining() >= RECORD_SIZE) {
+          int shape = buffer.getInt();
+          int shape1 = buffer.getInt();
+          int shape2 = buffer.getInt();
+          Ops.Name opName = OP_NAMES[buffer.get()];
+          int orient = buffer.get() & 0xff;
+          int cost = buffer.getShort() & 0xffff;
+          visitor.accept(shape, cost, opName, shape1, shape2, orient);
+        }
+        buffer.compact();
+      }
+    }
+  }
+
+  /**
+   * Fold a log into the SDBXY text shards of a DB directory, keeping the cheapest build of each shape. Shards already
+   * in the directory are merged with the log. Only the records of one shard are held in memory at a time per thread.
+   * The binary shard and filter of each replaced shard are rewritten if the directory has them. A directory with a
+   * binary shard and no text shard is not compacted, its builds would be lost. If the log cannot be split or a shard
+   * cannot be merged, no shard is replaced. The log is never changed.
+   */
+  static void compact(String logName, String dbName) {
+    System.out.printf("Compacting build log %s into %s\n", logName, dbName);
+    long before = System.currentTimeMillis();
+    Path dbPath = Paths.get(dbName);
+    Path spillPath = Paths.get(dbName + ".log");
+    Path mergePath = Paths.get(dbName + ".merge");
+    try (FileChannel channel = FileChannel.open(Paths.get(logName), StandardOpenOption.READ)) {
+      if (readHeader(channel, logName)[1] != 0) {
+        System.err.printf("Build log has canonical keys, use Solver.saveResults(): %s\n", logName);
+        return;
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+      return;
+    }
+    for (int index = 0; index < NUM_SHARDS; ++index) {
+      if (ShapeDB.hasBinaryOnly(dbPath, index)) {
+        System.err.printf("DB has binary shards with no text shard, cannot compact: %s\n", dbName);
+        return;
+      }
+    }
+
+    try {
+      Files.createDirectories(dbPath);
+      Files.createDirectories(spillPath);
+      long records = split(logName, spillPath);
+      IntStream.range(0, NUM_SHARDS).parallel().forEach(index -> sortShard(spillPath, index));
+      if (!DBMerge.union(dbName, spillPath.toString(), mergePath.toString()).ok()) {
+        System.err.printf("Error merging build log, the DB is unchanged: %s\n", dbName);
+        return;
+      }
+      for (int index = 0; index < NUM_SHARDS; ++index) {
+        Path file = mergePath.resolve(ShapeDB.fileName(index));
+        if (!Files.exists(file))
+          continue;
+        Files.move(file, dbPath.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        try {
+          ShapeDB.refreshShard(dbPath, index);
+        } catch (Exception e) {
+          throw new IOException("Error updating shard " + ShapeDB.fileName(index), e);
+        }
+      }
+      System.out.printf("Compacted %,d log records in %d ms\n", records, System.currentTimeMillis() - before);
+    } catch (IOException | UncheckedIOException e) {
+      System.err.printf("Error compacting build log: %s\n", logName);
+      e.printStackTrace();
+    } finally {
+      deleteDir(spillPath);
+      deleteDir(mergePath);
+    }
+  }
+
+  private static void deleteDir(Path dir) {
+    if (!Files.isDirectory(dir))
+      return;
+    try (Stream<Path> files = Files.list(dir)) {
+      for (Path file : (Iterable<Path>) files::iterator)
+        Files.delete(file);
+      Files.delete(dir);
+    } catch (IOException e) {
+      System.err.printf("Error deleting directory: %s\n", dir);
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Copy the records of a log to one SDBXY.log file per shard.
+   *
+   * @return number of records
+   */
+  private static long split(String logName, Path spillPath) throws IOException {
+    ByteBuffer[] buffers = new ByteBuffer[NUM_SHARDS];
+    FileChannel[] channels = new FileChannel[NUM_SHARDS];
+    long[] records = { 0 };
+    try {
+      forEach(logName, (shape, cost, opName, shape1, shape2, orient) -> {
+        int index = ShapeDB.index(shape);
+        try {
+          if (buffers[index] == null) {
+            buffers[index] = ByteBuffer.allocateDirect(SPILL_BUFFER_SIZE);
+            channels[index] = FileChannel.open(spillPath.resolve(ShapeDB.fileName(index) + ".log"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+          }
+          ByteBuffer buffer = buffers[index];
+          if (!buffer.hasRemaining())
+            writeAll(channels[index], buffer);
+          buffer.putInt(shape).putInt(shape1).putInt(shape2);
+          buffer.put((byte) opName.ordinal()).put((byte) orient).putShort((short) cost);
+          ++records[0];
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+      for (int index = 0; index < NUM_SHARDS; ++index) {
+        if (channels[index] != null)
+          writeAll(channels[index], buffers[index]);
+      }
+    } finally {
+      for (FileChannel channel : channels) {
+        if (channel != null)
+          channel.close();
+      }
+    }
+    return records[0];
+  }
+
+  private static void writeAll(FileChannel channel, ByteBuffer buffer) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining())
+      channel.write(buffer);
+    buffer.clear();
+  }
+
+  /**
+   * Keep the cheapest build of each shape in a shard's records and write them as a sorted text shard.
+   */
+  private static void sortShard(Path spillPath, int index) {
+    Path spillFile = spillPath.resolve(ShapeDB.fileName(index) + ".log");
+    if (!Files.exists(spillFile))
+      return;
+    try (FileChannel channel = FileChannel.open(spillFile, StandardOpenOption.READ)) {
+      int numRecords = (int) (channel.size() / RECORD_SIZE);
+      BuildTable builds = new BuildTable(Math.max(1, numRecords));
+      ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+      while (channel.read(buffer) >= 0) {
+        buffer.flip();
+        while (buffer.remaining() >= RECORD_SIZE) {
+          int shape = buffer.getInt();
+          int shape1 = buffer.getInt();
+          int shape2 = buffer.getInt();
+          Ops.Name opName = OP_NAMES[buffer.get()];
+          buffer.get();
+          int cost = buffer.getShort() & 0xffff;
+          builds.putIfCheaper(shape, cost, opName, shape1, shape2);
+        }
+        buffer.compact();
+      }
+      int[] shapes = builds.shapes();
+      ShapeWriter.radixSort(shapes);
+      try (ShapeWriter out = new ShapeWriter(spillPath.resolve(ShapeDB.fileName(index)), false)) {
+        for (int shape : shapes)
+          out.writeBuild(builds.get(shape));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Error sorting file: " + spillFile, e);
+    }
+  }
+
+}
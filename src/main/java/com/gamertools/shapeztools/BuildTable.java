@@ -0,0 +1,331 @@
+package com.gamertools.shapeztools;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * BuildTable
+ *
+ * Open addressing table of builds, shape -> (cost, op, shape1, shape2).
+ * - Keys, packed cost/op words and packed input shapes are kept in flat arrays, there are no per-entry objects.
+ * - Shape 0 is never built, it marks an empty slot.
+ * - Nothing locks. A slot is claimed with a CAS on its key and builds are replaced with a CAS on its info word.
+ * - The info word is marked busy while the input shapes are written, readers of a whole build wait for it.
+ * - The capacity is fixed when the table is created.
+ * - Each build can carry a small orientation number, for tables keyed by Ops.cutKeyValue().
+ */
+class BuildTable {
+
+  static final int ABSENT = -1;
+  // Largest capacity, 2^30 slots at a load of 3/4
+  static final int MAX_CAPACITY = 3 << 28;
+
+  private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(int[].class);
+  private static final VarHandle INFOS = MethodHandles.arrayElementVarHandle(long[].class);
+  private static final Ops.Name[] OP_NAMES = Ops.Name.values();
+
+  /* info word: cost (32) | orient (8) | op (8) | flags (8) */
+  private static final long VALID = 0x1;
+  private static final long BUSY = 0x2;
+
+  interface Visitor {
+    void accept(int shape, int cost, Ops.Name opName, int shape1, int shape2);
+  }
+
+  /**
+   * Raw copy of the valid builds, for checkpoints.
+   */
+  static class Snapshot {
+    final int[] shapes;
+    final long[] infos;
+    final long[] inputs;
+
+    Snapshot(int[] shapes, long[] infos, long[] inputs) {
+      this.shapes = shapes;
+      this.infos = infos;
+      this.inputs = inputs;
+    }
+  }
+
+  private final int capacity;
+  private final int shift;
+  private final int mask;
+  private final int[] keys;
+  private final long[] infos;
+  private final long[] inputs;
+  private final LongAdder size = new LongAdder();
+
+  /**
+   * @param capacity maximum number of builds
+   */
+  BuildTable(int capacity) {
+    if (capacity > MAX_CAPACITY)
+      throw new IllegalArgumentException("Build table capacity too large: " + capacity);
+    int bits = 64 - Long.numberOfLeadingZeros(Math.max(4, 4l * capacity / 3) - 1);
+    this.capacity = capacity;
+    this.shift = 32 - bits;
+    this.mask = (1 << bits) - 1;
+    this.keys = new int[1 << bits];
+    this.infos = new long[1 << bits];
+    this.inputs = new long[1 << bits];
+  }
+
+  private static long pack(int cost, Ops.Name opName, int orient) {
+    return ((long) cost << 32) | ((orient & 0xff) << 16) | (opName.ordinal() << 8) | VALID;
+  }
+
+  private static int costOf(long info) {
+    return (int) (info >>> 32);
+  }
+
+  private static Ops.Name opNameOf(long info) {
+    return OP_NAMES[(int) (info >>> 8) & 0xff];
+  }
+
+  private static int orientOf(long info) {
+    return (int) (info >>> 16) & 0xff;
+  }
+
+  private static long pack(int shape1, int shape2) {
+    return ((long) shape1 << 32) | (shape2 & 0xffffffffl);
+  }
+
+  private int hash(int shape) {
+    return (shape * 0x9e3779b9) >>> shift;
+  }
+
+  /**
+   * Find the slot of a shape.
+   *
+   * @return slot number, or -1 if the shape is not in the table
+   */
+  private int find(int shape) {
+    int key;
+    for (int slot = hash(shape);; slot = (slot + 1) & mask) {
+      key = (int) KEYS.getAcquire(keys, slot);
+      if (key == shape)
+        return slot;
+      if (key == 0)
+        return -1;
+    }
+  }
+
+  /**
+   * Find the slot of a shape, claiming an empty slot if the shape is not in the table.
+   */
+  private int claim(int shape) {
+    int key;
+    for (int slot = hash(shape);; slot = (slot + 1) & mask) {
+      key = (int) KEYS.getAcquire(keys, slot);
+      if (key == 0) {
+        if (size.sum() >= capacity)
+          throw new IllegalStateException("Build table is full: " + capacity);
+        key = (int) KEYS.compareAndExchange(keys, slot, 0, shape);
+        if (key == 0) {
+          size.increment();
+          return slot;
+        }
+      }
+      if (key == shape)
+        return slot;
+    }
+  }
+
+  private long info(int slot) {
+    return (long) INFOS.getAcquire(infos, slot);
+  }
+
+  /**
+   * Mark a slot busy, checking that no other writer has it.
+   */
+  private boolean lock(int slot, long info, long next) {
+    if ((info & BUSY) != 0) {
+      Thread.onSpinWait();
+      return false;
+    }
+    return INFOS.compareAndSet(infos, slot, info, next | BUSY);
+  }
+
+  private void unlock(int slot, long info, int shape1, int shape2) {
+    inputs[slot] = pack(shape1, shape2);
+    INFOS.setRelease(infos, slot, info);
+  }
+
+  /**
+   * Read the info and input words of a slot, retrying while they are being written.
+   */
+  private long read(int slot, long[] result) {
+    long info1, info2;
+    do {
+      info1 = info(slot);
+      if ((info1 & BUSY) != 0) {
+        Thread.onSpinWait();
+        continue;
+      }
+      result[0] = inputs[slot];
+      VarHandle.loadLoadFence();
+      info2 = info(slot);
+      if (info1 == info2)
+        return info1;
+    } while (true);
+  }
+
+  int size() {
+    return size.intValue();
+  }
+
+  int capacity() {
+    return capacity;
+  }
+
+  boolean contains(int shape) {
+    return cost(shape) != ABSENT;
+  }
+
+  /**
+   * @return cost of the shape's build, or ABSENT
+   */
+  int cost(int shape) {
+    if (shape == 0)
+      return ABSENT;
+    int slot = find(shape);
+    if (slot < 0)
+      return ABSENT;
+    long info = info(slot);
+    return ((info & VALID) == 0) ? ABSENT : costOf(info);
+  }
+
+  /**
+   * @return orientation of the shape's build, or ABSENT
+   */
+  int orient(int shape) {
+    if (shape == 0)
+      return ABSENT;
+    int slot = find(shape);
+    if (slot < 0)
+      return ABSENT;
+    long info = info(slot);
+    return ((info & VALID) == 0) ? ABSENT : orientOf(info);
+  }
+
+  /**
+   * @return a copy of the shape's build, or null
+   */
+  Solver.Build get(int shape) {
+    if (shape == 0)
+      return null;
+    int slot = find(shape);
+    if (slot < 0)
+      return null;
+    long[] in = new long[1];
+    long info = read(slot, in);
+    if ((info & VALID) == 0)
+      return null;
+    return new Solver.Build(costOf(info), opNameOf(info), shape, (int) (in[0] >>> 32), (int) in[0]);
+  }
+
+  /**
+   * Insert or replace the shape's build.
+   */
+  void put(int shape, int cost, Ops.Name opName, int shape1, int shape2) {
+    int slot = claim(shape);
+    long next = pack(cost, opName, 0);
+    while (!lock(slot, info(slot), next))
+      ;
+    unlock(slot, next, shape1, shape2);
+  }
+
+  /**
+   * Insert the shape's build, or replace it if the new build is cheaper.
+   *
+   * @return the previous cost, or ABSENT. The build was stored if the previous cost is ABSENT or greater than cost.
+   */
+  int putIfCheaper(int shape, int cost, Ops.Name opName, int shape1, int shape2) {
+    return putIfCheaper(shape, cost, opName, shape1, shape2, 0);
+  }
+
+  /**
+   * Insert the shape's build with an orientation, or replace it if the new build is cheaper.
+   *
+   * @param orient 0-255, see orient()
+   * @return the previous cost, or ABSENT
+   */
+  int putIfCheaper(int shape, int cost, Ops.Name opName, int shape1, int shape2, int orient) {
+    int slot = claim(shape);
+    long next = pack(cost, opName, orient);
+    long info;
+    int oldCost;
+    do {
+      info = info(slot);
+      oldCost = ((info & VALID) == 0) ? ABSENT : costOf(info);
+      if ((oldCost != ABSENT) && (cost >= oldCost))
+        return oldCost;
+    } while (!lock(slot, info, next));
+    unlock(slot, next, shape1, shape2);
+    return oldCost;
+  }
+
+  void forEach(Visitor visitor) {
+    long[] in = new long[1];
+    long info;
+    int shape;
+    for (int slot = 0; slot <= mask; ++slot) {
+      shape = (int) KEYS.getAcquire(keys, slot);
+      if (shape == 0)
+        continue;
+      info = read(slot, in);
+      if ((info & VALID) != 0)
+        visitor.accept(shape, costOf(info), opNameOf(info), (int) (in[0] >>> 32), (int) in[0]);
+    }
+  }
+
+  /**
+   * Copy the valid builds. Builds stored while the copy is made may or may not be in it.
+   */
+  Snapshot snapshot() {
+    int[] slots = IntStream.rangeClosed(0, mask).filter(slot -> (int) KEYS.getAcquire(keys, slot) != 0).toArray();
+    int[] shapes = new int[slots.length];
+    long[] infoCopy = new long[slots.length];
+    long[] inputCopy = new long[slots.length];
+    long[] in = new long[1];
+    int num = 0;
+    for (int slot : slots) {
+      long info = read(slot, in);
+      if ((info & VALID) == 0)
+        continue;
+      shapes[num] = keys[slot];
+      infoCopy[num] = info;
+      inputCopy[num++] = in[0];
+    }
+    return new Snapshot(Arrays.copyOf(shapes, num), Arrays.copyOf(infoCopy, num), Arrays.copyOf(inputCopy, num));
+  }
+
+  /**
+   * Insert or replace the builds of a snapshot.
+   */
+  void restore(Snapshot snapshot) {
+    int slot;
+    long info;
+    for (int i = 0; i < snapshot.shapes.length; ++i) {
+      slot = claim(snapshot.shapes[i]);
+      info = snapshot.infos[i] & ~BUSY;
+      while (!lock(slot, info(slot), info))
+        ;
+      unlock(slot, info, (int) (snapshot.inputs[i] >>> 32), (int) snapshot.inputs[i]);
+    }
+  }
+
+  /**
+   * @return all shapes with a build, unsorted. A slot that is claimed but has no build yet is skipped, one that is
+   *         being written is waited for.
+   */
+  int[] shapes() {
+    long[] in = new long[1];
+    return IntStream.rangeClosed(0, mask).filter(slot -> (int) KEYS.getAcquire(keys, slot) != 0)
+        .filter(slot -> (read(slot, in) & VALID) != 0).map(slot -> keys[slot]).toArray();
+  }
+
+}
@@ -0,0 +1,259 @@
+package com.gamertools.shapeztools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Checkpoint
+ *
+ * Binary snapshot of a Solver run: the builds, the shapes already expanded, the cost queue and the current cost.
+ * - A checkpoint is taken between batches and written by a background thread while the next batch runs.
+ * - The file is written to a temporary name and renamed, the previous checkpoint is kept as name.prev.
+ * - The last 8 bytes are a CRC32 of the rest of the file, a checkpoint that fails the check is not resumed.
+ */
+class Checkpoint {
+
+  private static final int MAGIC = 0x535a434b; // SZCK
+  private static final int VERSION = 1;
+  private static final int CHUNK_SIZE = 1 << 20;
+
+  final int layers;
+  final boolean canonical;
+  final int cost;
+  final BuildTable.Snapshot builds;
+  final int[] doneShapes;
+  final int[][] queue;
+
+  Checkpoint(int layers, boolean canonical, int cost, BuildTable.Snapshot builds, int[] doneShapes, int[][] queue) {
+    this.layers = layers;
+    this.canonical = canonical;
+    this.cost = cost;
+    this.builds = builds;
+    this.doneShapes = doneShapes;
+    this.queue = queue;
+  }
+
+  /**
+   * Write the checkpoint.
+   *
+   * @return number of bytes written
+   */
+  long write(String name) throws IOException {
+    Path path = Paths.get(name);
+    Path temp = Paths.get(name + ".tmp");
+    long size;
+    try (Writer out = new Writer(FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING))) {
+      out.putInt(MAGIC);
+      out.putInt(VERSION);
+      out.putInt(layers);
+      out.putInt(canonical ? Solver.CANONICAL_MODE : 0);
+      out.putInt(cost);
+      out.putInts(builds.shapes);
+      out.putLongs(builds.infos);
+      out.putLongs(builds.inputs);
+      out.putInts(doneShapes);
+      out.putInt(queue.length);
+      for (int[] shapes : queue)
+        out.putInts(shapes);
+      size = out.finish();
+    }
+    if (Files.exists(path))
+      Files.move(path, Paths.get(name + ".prev"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    return size;
+  }
+
+  /**
+   * Read the latest valid checkpoint, trying name then name.prev.
+   *
+   * @return the checkpoint, or null if there is no valid checkpoint
+   */
+  static Checkpoint readLatest(String name) {
+    for (String fileName : new String[] { name, name + ".prev" }) {
+      if (!Files.exists(Paths.get(fileName)))
+        continue;
+      try {
+        return read(fileName);
+      } catch (Exception e) {
+        System.err.printf("Error reading checkpoint: %s\n", fileName);
+        e.printStackTrace();
+      }
+    }
+    return null;
+  }
+
+  static Checkpoint read(String name) throws IOException {
+    System.out.printf("Reading file: %s\n", name);
+    try (Reader in = new Reader(FileChannel.open(Paths.get(name), StandardOpenOption.READ))) {
+      if (in.getInt() != MAGIC)
+        throw new IOException("Not a checkpoint file: " + name);
+      int version = in.getInt();
+      if (version != VERSION)
+        throw new IOException("Unknown checkpoint version: " + version);
+      int layers = in.getInt();
+      int mode = in.getInt();
+      if ((mode != 0) && (mode != Solver.CANONICAL_MODE))
+        throw new IOException("Checkpoint is from an old canonical run: " + name);
+      boolean canonical = mode != 0;
+      int cost = in.getInt();
+      BuildTable.Snapshot builds = new BuildTable.Snapshot(in.getInts(), in.getLongs(), in.getLongs());
+      int[] doneShapes = in.getInts();
+      int[][] queue = new int[in.getInt()][];
+      for (int i = 0; i < queue.length; ++i)
+        queue[i] = in.getInts();
+      in.finish();
+      return new Checkpoint(layers, canonical, cost, builds, doneShapes, queue);
+    }
+  }
+
+  /*
+   * Buffered channel writer that keeps a CRC of everything written.
+   */
+  private static class Writer implements AutoCloseable {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+    private final CRC32 crc = new CRC32();
+    private long size = 0;
+
+    Writer(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    private void room(int bytes) throws IOException {
+      if (buffer.remaining() < bytes)
+        flush();
+    }
+
+    private void flush() throws IOException {
+      buffer.flip();
+      crc.update(buffer.duplicate());
+      while (buffer.hasRemaining())
+        size += channel.write(buffer);
+      buffer.clear();
+    }
+
+    void putInt(int value) throws IOException {
+      room(4);
+      buffer.putInt(value);
+    }
+
+    void putInts(int[] values) throws IOException {
+      putInt(values.length);
+      for (int value : values) {
+        room(4);
+        buffer.putInt(value);
+      }
+    }
+
+    void putLongs(long[] values) throws IOException {
+      putInt(values.length);
+      for (long value : values) {
+        room(8);
+        buffer.putLong(value);
+      }
+    }
+
+    /**
+     * Write the CRC and force the file to disk.
+     *
+     * @return file size
+     */
+    long finish() throws IOException {
+      flush();
+      buffer.putLong(crc.getValue()).flip();
+      while (buffer.hasRemaining())
+        size += channel.write(buffer);
+      channel.force(true);
+      return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  /*
+   * Buffered channel reader that checks the CRC at the end of the file.
+   */
+  private static class Reader implements AutoCloseable {
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+    private final CRC32 crc = new CRC32();
+    private long left;
+
+    Reader(FileChannel channel) throws IOException {
+      this.channel = channel;
+      this.left = channel.size() - 8;
+      buffer.limit(0);
+    }
+
+    private void need(int bytes) throws IOException {
+      if (buffer.remaining() >= bytes)
+        return;
+      buffer.compact();
+      int length = (int) Math.min(buffer.remaining(), left);
+      if (length < bytes - buffer.position())
+        throw new IOException("Checkpoint file is truncated");
+      buffer.limit(buffer.position() + length);
+      while (buffer.hasRemaining())
+        channel.read(buffer);
+      left -= length;
+      buffer.flip();
+      // CRC the bytes just read, they follow any bytes left over from the last read
+      ByteBuffer read = buffer.duplicate();
+      read.position(read.limit() - length);
+      crc.update(read);
+    }
+
+    int getInt() throws IOException {
+      need(4);
+      return buffer.getInt();
+    }
+
+    int[] getInts() throws IOException {
+      int[] values = new int[getInt()];
+      for (int i = 0; i < values.length; ++i) {
+        need(4);
+        values[i] = buffer.getInt();
+      }
+      return values;
+    }
+
+    long[] getLongs() throws IOException {
+      long[] values = new long[getInt()];
+      for (int i = 0; i < values.length; ++i) {
+        need(8);
+        values[i] = buffer.getLong();
+      }
+      return values;
+    }
+
+    /**
+     * Check that all of the data was read and the CRC matches.
+     */
+    void finish() throws IOException {
+      if (buffer.hasRemaining() || (left != 0))
+        throw new IOException("Checkpoint file has extra data");
+      ByteBuffer stored = ByteBuffer.allocate(8);
+      while (stored.hasRemaining() && (channel.read(stored) >= 0))
+        ;
+      if (stored.flip().getLong() != crc.getValue())
+        throw new IOException("Checkpoint CRC does not match");
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+}
@@ -25,10 +25,33 @@ public class Constructor {
       Ops::cutLeft, Ops::cutRight, Ops::pinPush, Ops::crystal };
   private static final IntBinaryOperator[] TWO_OPS_ALL = { Ops::swapLeft, Ops::swapRight, Ops::stack };
   private static final IntUnaryOperator[] ONE_OPS = { Ops::rotateRight, Ops::cutRight, Ops::pinPush, Ops::crystal };
+  private static final boolean USE_OP_TABLES = true;
+  private static final String OP_TABLE_DIR = null;
   private static final IntBinaryOperator[] TWO_OPS = { Ops::fastSwapRight, Ops::fastStack };
 
-  private Set<Integer> allShapes = new HashSet<>();
+  private final int layers;
+  private ShapeSet allShapes;
   private Set<Integer> newShapes = Collections.synchronizedSet(new HashSet<>());
+  private IntUnaryOperator[] oneOps = ONE_OPS;
+  private final List<SolverListener> listeners = new ArrayList<>();
+
+  Constructor() {
+    this(MAX_LAYERS);
+  }
+
+  Constructor(int layers) {
+    this.layers = layers;
+    allShapes = new ShapeSet(layers);
+    // Same ops as ONE_OPS, with table lookups for the slow ones
+    if (USE_OP_TABLES && (layers <= OpTable.MAX_LAYERS)) {
+      oneOps = new IntUnaryOperator[] { Ops::rotateRight, OpTable.get(Ops.Name.CUT_RIGHT, layers, OP_TABLE_DIR),
+          OpTable.get(Ops.Name.PINPUSH, layers, OP_TABLE_DIR), Ops::crystal };
+    }
+  }
+
+  void addListener(SolverListener listener) {
+    listeners.add(listener);
+  }
 
   private IntStream shapeStream(Set<Integer> shapes) {
     return shapes.stream().mapToInt(Integer::intValue);
@@ -38,6 +61,10 @@ public class Constructor {
     return Arrays.stream(shapes);
   }
 
+  private IntStream shapeStream(ShapeSet shapes) {
+    return shapes.stream();
+  }
+
   Set<Integer> takeValues(Set<Integer> srcSet, int maxValues) {
     Set<Integer> dstSet = new HashSet<>();
     for (int v : srcSet) {
@@ -52,7 +79,7 @@ public class Constructor {
   private boolean maxLayers(int shape) {
     if (shape == 0)
       return false;
-    return (Shape.v1(shape) | Shape.v2(shape)) < (1 << (4 * MAX_LAYERS));
+    return (Shape.v1(shape) | Shape.v2(shape)) < (1 << (4 * layers));
   }
 
   private boolean oneLayerNoCrystal(int shape) {
@@ -64,7 +91,7 @@ public class Constructor {
     int[] shapes = Arrays.stream(new int[][] { Shape.FLAT_4, Shape.PIN_4 }).flatMapToInt(Arrays::stream).toArray();
 
     System.out.println("Max iters: " + MAX_ITERS);
-    System.out.println("Max layers: " + MAX_LAYERS);
+    System.out.println("Max layers: " + layers);
     System.out.println("Batch size: " + BATCH_SIZE);
     System.out.println("Input shapes");
     Tools.displayShapes(shapes);
@@ -74,10 +101,14 @@ public class Constructor {
     Set<Integer> inputShapes;
     for (int i = 1; i <= MAX_ITERS; ++i) {
       System.out.printf("ITER #%d\n", i);
+      for (SolverListener listener : listeners)
+        listener.levelStarted(i);
       inputShapes = takeValues(newShapes, BATCH_SIZE);
       /* TODO: add inputShapes to allShapes before calling makeShapes */
       makeShapes(inputShapes);
-      allShapes.addAll(inputShapes);
+      inputShapes.forEach(allShapes::add);
+      for (SolverListener listener : listeners)
+        listener.levelDone(i, allShapes.size(), 0);
 
       if (newShapes.size() > 0) {
         System.out.printf("TODO %d\n\n", newShapes.size());
@@ -86,6 +117,8 @@ public class Constructor {
         break;
       }
     }
+    for (SolverListener listener : listeners)
+      listener.runDone(allShapes.size(), 0);
   }
 
   /**
@@ -98,8 +131,8 @@ public class Constructor {
     IntStream stream;
     int inputLen = inputShapes.size();
 
-    System.out.printf("ONE_OPS %d %d > %d\n", ONE_OPS.length, inputLen, 1l * ONE_OPS.length * inputLen);
-    for (IntUnaryOperator op : ONE_OPS) {
+    System.out.printf("ONE_OPS %d %d > %d\n", oneOps.length, inputLen, 1l * oneOps.length * inputLen);
+    for (IntUnaryOperator op : oneOps) {
       streams.add(shapeStream(inputShapes).map(op));
     }
 
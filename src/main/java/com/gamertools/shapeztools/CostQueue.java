@@ -0,0 +1,83 @@
+package com.gamertools.shapeztools;
+
+import java.util.function.IntPredicate;
+
+/**
+ * CostQueue
+ *
+ * Monotone bucket queue of shapes by build cost (Dial's algorithm).
+ * - Each cost has a bucket of shapes in a primitive IntList.
+ * - Entries are never removed. When a shape's cost drops it is added again to the cheaper bucket, and the stale
+ * entry is skipped when it is taken.
+ * - Batches are taken from a bucket with a cursor, the rest of the bucket is not copied.
+ */
+class CostQueue {
+
+  private final IntList[] buckets;
+  private final int[] cursors;
+
+  CostQueue(int maxCost) {
+    buckets = new IntList[maxCost];
+    cursors = new int[maxCost];
+  }
+
+  int maxCost() {
+    return buckets.length;
+  }
+
+  void add(int shape, int cost) {
+    if (buckets[cost] == null)
+      buckets[cost] = new IntList();
+    buckets[cost].add(shape);
+  }
+
+  /**
+   * Number of entries left in a bucket, including stale entries.
+   */
+  int size(int cost) {
+    return (buckets[cost] == null) ? 0 : buckets[cost].size() - cursors[cost];
+  }
+
+  boolean isEmpty(int cost) {
+    return size(cost) == 0;
+  }
+
+  /**
+   * Copy of the entries left in a bucket, including stale entries.
+   */
+  int[] remaining(int cost) {
+    if (buckets[cost] == null)
+      return new int[0];
+    return buckets[cost].toArray(cursors[cost]);
+  }
+
+  /**
+   * Take up to maxValues shapes from a bucket, skipping stale entries.
+   *
+   * @param cost
+   * @param maxValues
+   * @param current   true if a shape's entry in this bucket is not stale
+   * @return shapes taken
+   */
+  int[] take(int cost, int maxValues, IntPredicate current) {
+    IntList bucket = buckets[cost];
+    if (bucket == null)
+      return new int[0];
+    IntList result = new IntList(Math.min(maxValues, size(cost)));
+    int shape;
+    int cursor = cursors[cost];
+    while ((cursor < bucket.size()) && (result.size() < maxValues)) {
+      shape = bucket.get(cursor++);
+      if (current.test(shape))
+        result.add(shape);
+    }
+    cursors[cost] = cursor;
+    // Free the bucket when it is done
+    if (cursor == bucket.size()) {
+      buckets[cost] = null;
+      cursors[cost] = 0;
+    }
+    return result.toArray();
+  }
+
+}
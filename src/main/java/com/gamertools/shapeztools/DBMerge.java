@@ -0,0 +1,285 @@
+package com.gamertools.shapeztools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * DBMerge
+ *
+ * Streaming tools over sorted DB files: diff, union with the cheaper build, and builds that are only in the new DB.
+ * - A DB is a directory of SDBXY shard files, or a single file. Files must be sorted in unsigned shape order, see
+ * ShapeFile.sort().
+ * - Each pair of shards is merge-joined in one sequential pass per input, with a small buffer for each file, so the
+ * memory used does not depend on the size of the DB.
+ * - Shards are processed in parallel. A shard that is missing from one DB is empty.
+ */
+class DBMerge {
+
+  private static final int BUFFER_SIZE = 1 << 20;
+  private static final int MAX_LINE_SIZE = 64;
+  private static final int NUM_SHARDS = 256;
+
+  /**
+   * Counts from a merge.
+   */
+  static class Result {
+    final LongAdder same = new LongAdder();
+    final LongAdder changed = new LongAdder();
+    final LongAdder onlyOld = new LongAdder();
+    final LongAdder onlyNew = new LongAdder();
+    // Shards that could not be merged, their output is deleted
+    final LongAdder failed = new LongAdder();
+
+    /**
+     * @return true if every shard was merged
+     */
+    boolean ok() {
+      return failed.sum() == 0;
+    }
+
+    public String toString() {
+      return String.format("same %,d, changed %,d, only old %,d, only new %,d", same.sum(), changed.sum(),
+          onlyOld.sum(), onlyNew.sum()) + (ok() ? "" : String.format(", failed %d", failed.sum()));
+    }
+  }
+
+  private interface ShardMerge {
+    void merge(Reader oldDB, Reader newDB, ShapeWriter out, Result result) throws IOException;
+  }
+
+  /*
+   * Sequential reader of a sorted DB file. A missing file reads as empty.
+   */
+  private static class Reader implements AutoCloseable {
+    private final Path file;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ShapeFile.Line line = new ShapeFile.Line();
+    private boolean eof;
+    private boolean valid = false;
+    private long offset = 0;
+
+    Reader(Path file) throws IOException {
+      this.file = file;
+      this.channel = Files.exists(file) ? FileChannel.open(file, StandardOpenOption.READ) : null;
+      this.eof = (channel == null);
+      buffer.limit(0);
+    }
+
+    /**
+     * Read the next build.
+     *
+     * @return false at the end of the file
+     */
+    boolean next() throws IOException {
+      int prev = line.shape;
+      while (true) {
+        if ((buffer.remaining() < MAX_LINE_SIZE) && !eof) {
+          offset += buffer.position();
+          buffer.compact();
+          while (buffer.hasRemaining() && !eof)
+            eof = channel.read(buffer) < 0;
+          buffer.flip();
+        }
+        if (!buffer.hasRemaining())
+          return valid = false;
+        if (buffer.get(buffer.position()) != '\n')
+          break;
+        buffer.get();
+      }
+      int pos = buffer.position();
+      int next = line.parse(buffer, pos, buffer.limit());
+      if (next < 0)
+        throw new IOException(String.format("Bad line at byte %d of %s", offset + pos, file));
+      if (valid && (Integer.compareUnsigned(line.shape, prev) <= 0))
+        throw new IOException(String.format("File is not sorted at byte %d of %s", offset + pos, file));
+      buffer.position(next);
+      return valid = true;
+    }
+
+    boolean valid() {
+      return valid;
+    }
+
+    int shape() {
+      return line.shape;
+    }
+
+    int cost() {
+      return line.cost;
+    }
+
+    void write(ShapeWriter out) throws IOException {
+      out.writeBuild(line.shape, line.cost, line.opName, line.shape1, line.shape2);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (channel != null)
+        channel.close();
+    }
+  }
+
+  /**
+   * Compare two DBs, printing the shapes that are missing from one or have a different cost.
+   *
+   * @param maxPrint maximum number of shapes to print
+   */
+  static Result diff(String oldName, String newName, int maxPrint) {
+    LongAdder printed = new LongAdder();
+    return run(oldName, newName, null, (oldDB, newDB, out, result) -> {
+      int cmp;
+      while (oldDB.valid() || newDB.valid()) {
+        cmp = !newDB.valid() ? -1 : !oldDB.valid() ? 1 : Integer.compareUnsigned(oldDB.shape(), newDB.shape());
+        if (cmp == 0) {
+          if (oldDB.cost() == newDB.cost()) {
+            result.same.increment();
+          } else {
+            result.changed.increment();
+            print(printed, maxPrint, "Found %08x %d %d\n", oldDB.shape(), oldDB.cost(), newDB.cost());
+          }
+          oldDB.next();
+          newDB.next();
+        } else if (cmp < 0) {
+          result.onlyOld.increment();
+          print(printed, maxPrint, "Found %08x %d -\n", oldDB.shape(), oldDB.cost());
+          oldDB.next();
+        } else {
+          result.onlyNew.increment();
+          print(printed, maxPrint, "Found %08x - %d\n", newDB.shape(), newDB.cost());
+          newDB.next();
+        }
+      }
+    });
+  }
+
+  private static void print(LongAdder printed, int maxPrint, String format, Object... args) {
+    if (printed.sum() < maxPrint) {
+      printed.increment();
+      System.out.printf(format, args);
+    }
+  }
+
+  /**
+   * Write every build of both DBs, taking the cheaper build of shapes in both, or the old build if they cost the same.
+   */
+  static Result union(String oldName, String newName, String outName) {
+    return run(oldName, newName, outName, (oldDB, newDB, out, result) -> {
+      int cmp;
+      while (oldDB.valid() || newDB.valid()) {
+        cmp = !newDB.valid() ? -1 : !oldDB.valid() ? 1 : Integer.compareUnsigned(oldDB.shape(), newDB.shape());
+        if (cmp == 0) {
+          if (oldDB.cost() == newDB.cost())
+            result.same.increment();
+          else
+            result.changed.increment();
+          if (newDB.cost() < oldDB.cost())
+            newDB.write(out);
+          else
+            oldDB.write(out);
+          oldDB.next();
+          newDB.next();
+        } else if (cmp < 0) {
+          result.onlyOld.increment();
+          oldDB.write(out);
+          oldDB.next();
+        } else {
+          result.onlyNew.increment();
+          newDB.write(out);
+          newDB.next();
+        }
+      }
+    });
+  }
+
+  /**
+   * Write the builds of shapes that are in the new DB and not in the old DB.
+   */
+  static Result newShapes(String oldName, String newName, String outName) {
+    return run(oldName, newName, outName, (oldDB, newDB, out, result) -> {
+      int cmp;
+      while (oldDB.valid() || newDB.valid()) {
+        cmp = !newDB.valid() ? -1 : !oldDB.valid() ? 1 : Integer.compareUnsigned(oldDB.shape(), newDB.shape());
+        if (cmp == 0) {
+          if (oldDB.cost() == newDB.cost())
+            result.same.increment();
+          else
+            result.changed.increment();
+          oldDB.next();
+          newDB.next();
+        } else if (cmp < 0) {
+          result.onlyOld.increment();
+          oldDB.next();
+        } else {
+          result.onlyNew.increment();
+          newDB.write(out);
+          newDB.next();
+        }
+      }
+    });
+  }
+
+  /**
+   * Merge two DBs shard by shard. Two files are merged as one shard, two directories as 256 shards. A shard that
+   * fails is counted in Result.failed and the other shards are still merged.
+   *
+   * @param outName output file or directory, or null for no output
+   */
+  private static Result run(String oldName, String newName, String outName, ShardMerge merge) {
+    Path oldPath = Paths.get(oldName);
+    Path newPath = Paths.get(newName);
+    Path outPath = (outName == null) ? null : Paths.get(outName);
+    Result result = new Result();
+    long before = System.currentTimeMillis();
+    try {
+      if (Files.isDirectory(oldPath) && Files.isDirectory(newPath)) {
+        if (outPath != null)
+          Files.createDirectories(outPath);
+        IntStream.range(0, NUM_SHARDS).parallel().forEach(index -> {
+          String fileName = ShapeDB.fileName(index);
+          Path out = (outPath == null) ? null : outPath.resolve(fileName);
+          mergeShard(oldPath.resolve(fileName), newPath.resolve(fileName), out, merge, result);
+        });
+      } else if (Files.isRegularFile(oldPath) && Files.isRegularFile(newPath)) {
+        mergeShard(oldPath, newPath, outPath, merge, result);
+      } else {
+        System.err.printf("Inputs must be two files or two directories: %s %s\n", oldName, newName);
+        result.failed.increment();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+      result.failed.increment();
+    }
+    System.out.printf("%s, %d ms\n", result, System.currentTimeMillis() - before);
+    return result;
+  }
+
+  private static void mergeShard(Path oldFile, Path newFile, Path outFile, ShardMerge merge, Result result) {
+    if (!Files.exists(oldFile) && !Files.exists(newFile))
+      return;
+    try (Reader oldDB = new Reader(oldFile); Reader newDB = new Reader(newFile);
+        ShapeWriter out = (outFile == null) ? null : new ShapeWriter(outFile, false)) {
+      oldDB.next();
+      newDB.next();
+      merge.merge(oldDB, newDB, out, result);
+    } catch (IOException e) {
+      System.err.printf("Error merging files: %s %s\n", oldFile, newFile);
+      e.printStackTrace();
+      result.failed.increment();
+      try {
+        if (outFile != null)
+          Files.deleteIfExists(outFile);
+      } catch (IOException e2) {
+        e2.printStackTrace();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,63 @@
+package com.gamertools.shapeztools;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * IntList
+ *
+ * A growable array of ints, without boxing.
+ */
+class IntList {
+
+  private int[] values;
+  private int size = 0;
+
+  IntList() {
+    this(16);
+  }
+
+  IntList(int capacity) {
+    values = new int[Math.max(1, capacity)];
+  }
+
+  void add(int value) {
+    if (size == values.length)
+      values = Arrays.copyOf(values, 2 * size);
+    values[size++] = value;
+  }
+
+  void add(int value1, int value2) {
+    add(value1);
+    add(value2);
+  }
+
+  int get(int index) {
+    return values[index];
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  void clear() {
+    size = 0;
+  }
+
+  int[] toArray() {
+    return Arrays.copyOf(values, size);
+  }
+
+  int[] toArray(int from) {
+    return Arrays.copyOfRange(values, from, size);
+  }
+
+  IntStream stream() {
+    return Arrays.stream(values, 0, size);
+  }
+
+}
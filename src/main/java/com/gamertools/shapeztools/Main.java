@@ -19,24 +19,55 @@ public class Main {
     Tests.run();
 
     // makeShapes();
+    // resumeShapes();
+    // SolverBench.run();
   }
 
   static void makeShapes() {
+    // Constructor f = new Constructor();
+    runSolver(new Solver());
+  }
+
+  /**
+   * Continue a Solver run from its latest checkpoint.
+   */
+  static void resumeShapes() {
+    Solver f = Solver.resume(Solver.CHECKPOINT);
+    if (f == null) {
+      System.out.printf("No checkpoint found: %s\n", Solver.CHECKPOINT);
+      return;
+    }
+    runSolver(f);
+  }
+
+  static void runSolver(Solver f) {
     Ops.Stats.clear();
+    f.setFiles(Solver.BUILD_LOG, Solver.CHECKPOINT);
 
-    // Constructor f = new Constructor();
-    Solver f = new Solver();
     Thread exitHook = new Thread(() -> {
       System.out.println("Shutdown");
       f.shutdown();
     });
     Runtime.getRuntime().addShutdownHook(exitHook);
 
+    MetricsLog metrics = null;
+    try {
+      if (Solver.METRICS_LOG != null) {
+        metrics = new MetricsLog(Solver.METRICS_LOG);
+        f.addListener(metrics);
+      }
+    } catch (Exception e) {
+      System.err.printf("Error opening metrics log: %s\n", Solver.METRICS_LOG);
+      e.printStackTrace();
+    }
+
     long before = new Date().getTime();
     f.run();
     long after = new Date().getTime();
     System.out.printf("Time: %d\n", after - before);
     System.out.println(Ops.Stats.asString());
+    if (metrics != null)
+      metrics.close();
 
     // Runtime.getRuntime().removeShutdownHook(exitHook);
   }
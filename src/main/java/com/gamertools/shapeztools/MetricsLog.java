@@ -0,0 +1,127 @@
+package com.gamertools.shapeztools;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Locale;
+
+/**
+ * MetricsLog
+ *
+ * Appends Solver progress to a file as JSON lines: one when the log is opened, one per batch, one per level with the
+ * batch totals of the level, and one at the end of the run. Times are in milliseconds, the heap used by a level is the
+ * most used after any of its batches. The file is flushed after each level, so it can be read during a run.
+ */
+class MetricsLog implements SolverListener, AutoCloseable {
+
+  private final BufferedWriter out;
+  private final long runStart = System.nanoTime();
+  private long levelStart;
+  // Batch totals of the current level
+  private final Batch level = new Batch();
+  private int batches;
+
+  MetricsLog(String name) throws IOException {
+    Path path = Paths.get(name);
+    if (path.toAbsolutePath().getParent() != null)
+      Files.createDirectories(path.toAbsolutePath().getParent());
+    out = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    write("{\"type\":\"start\",\"date\":\"%s\",\"processors\":%d,\"maxHeap\":%d}", Instant.now(),
+        Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory());
+  }
+
+  private static double perSecond(long count, long nanos) {
+    return (nanos == 0) ? 0 : 1e9 * count / nanos;
+  }
+
+  private static long millis(long nanos) {
+    return nanos / 1000000;
+  }
+
+  private void write(String format, Object... args) {
+    try {
+      out.write(String.format(Locale.ROOT, format, args));
+      out.write('\n');
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void flush() {
+    try {
+      out.flush();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /* Fields shared by batch and level lines */
+  private static String counts(Batch batch) {
+    return String.format(Locale.ROOT,
+        "\"inputs\":%d,\"unaryOps\":%d,\"pairsGenerated\":%d,\"pairsPruned\":%d,\"pairsKept\":%d,\"found\":%d,"
+            + "\"dups\":%d,\"newBuilds\":%d,\"unaryMillis\":%d,\"joinMillis\":%d,\"frontierMillis\":%d,"
+            + "\"heapUsed\":%d,\"opsPerSec\":%.0f",
+        batch.inputs, batch.unaryOps, batch.pairsGenerated(), batch.pairsPruned, batch.pairsKept, batch.found,
+        batch.dups, batch.newBuilds, millis(batch.unaryNanos), millis(batch.joinNanos), millis(batch.frontierNanos),
+        batch.heapUsed, perSecond(batch.ops(), batch.nanos()));
+  }
+
+  @Override
+  public void levelStarted(int cost) {
+    levelStart = System.nanoTime();
+    level.cost = cost;
+    level.inputs = 0;
+    level.unaryOps = level.pairsKept = level.pairsPruned = 0;
+    level.found = level.dups = level.newBuilds = 0;
+    level.unaryNanos = level.joinNanos = level.frontierNanos = 0;
+    level.heapUsed = 0;
+    batches = 0;
+  }
+
+  @Override
+  public void batchDone(Batch batch) {
+    write("{\"type\":\"batch\",\"cost\":%d,%s}", batch.cost, counts(batch));
+    ++batches;
+    level.inputs += batch.inputs;
+    level.unaryOps += batch.unaryOps;
+    level.pairsKept += batch.pairsKept;
+    level.pairsPruned += batch.pairsPruned;
+    level.found += batch.found;
+    level.dups += batch.dups;
+    level.newBuilds += batch.newBuilds;
+    level.unaryNanos += batch.unaryNanos;
+    level.joinNanos += batch.joinNanos;
+    level.frontierNanos += batch.frontierNanos;
+    level.heapUsed = Math.max(level.heapUsed, batch.heapUsed);
+  }
+
+  @Override
+  public void levelDone(int cost, long shapes, long builds) {
+    long nanos = System.nanoTime() - levelStart;
+    write("{\"type\":\"level\",\"cost\":%d,\"batches\":%d,\"millis\":%d,\"shapes\":%d,\"builds\":%d,%s}", cost, batches,
+        millis(nanos), shapes, builds, counts(level));
+    flush();
+  }
+
+  @Override
+  public void runDone(long shapes, long builds) {
+    write("{\"type\":\"run\",\"date\":\"%s\",\"millis\":%d,\"shapes\":%d,\"builds\":%d}", Instant.now(),
+        millis(System.nanoTime() - runStart), shapes, builds);
+    flush();
+  }
+
+  @Override
+  public void close() {
+    try {
+      out.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+}
@@ -0,0 +1,184 @@
+package com.gamertools.shapeztools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * OpTable
+ *
+ * Lookup table of a one input op for every shape of up to maxLayers layers.
+ * - Shapes are indexed like ShapeSet, one int for each v2:v1 pair of (4 * maxLayers) bits. 3 layers is 2^24 ints
+ * (64 MB) per op.
+ * - Tables are made once in parallel, and can be saved to a directory and memory mapped by later runs.
+ * - Shapes with more than maxLayers layers are passed to the op.
+ * - Rotations, crystal and swaps are a few bit operations, a table lookup is slower than the op.
+ */
+class OpTable implements IntUnaryOperator {
+
+  static final Ops.Name[] TABLE_OPS = { Ops.Name.CUT_RIGHT, Ops.Name.CUT_LEFT, Ops.Name.PINPUSH };
+
+  static final int MAX_LAYERS = 3;
+  private static final int MAGIC = 0x535a4f54; // SZOT
+  private static final int HEADER_SIZE = 16;
+  private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+  private static final Map<String, OpTable> tables = new HashMap<>();
+
+  private final Ops.Name opName;
+  private final int maxLayers;
+  private final int shift;
+  private final IntBuffer table;
+
+  private OpTable(Ops.Name opName, int maxLayers, IntBuffer table) {
+    this.opName = opName;
+    this.maxLayers = maxLayers;
+    this.shift = 4 * maxLayers;
+    this.table = table;
+  }
+
+  static boolean hasTable(Ops.Name opName) {
+    for (Ops.Name name : TABLE_OPS) {
+      if (name == opName)
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Get the shared table of an op, making it the first time.
+   *
+   * @param opName    one of TABLE_OPS
+   * @param maxLayers 1-3
+   * @param dir       directory of saved tables, or null to keep the table in memory only
+   */
+  static synchronized OpTable get(Ops.Name opName, int maxLayers, String dir) {
+    String name = String.format("%s-%d.tbl", opName.code, maxLayers);
+    OpTable table = tables.get(name);
+    if (table == null) {
+      table = (dir == null) ? make(opName, maxLayers) : load(opName, maxLayers, Paths.get(dir, name));
+      tables.put(name, table);
+    }
+    return table;
+  }
+
+  /**
+   * Get the shared tables for TABLE_OPS.
+   *
+   * @return tables indexed by op ordinal, null for ops without a table
+   */
+  static OpTable[] getAll(int maxLayers, String dir) {
+    OpTable[] result = new OpTable[Ops.Name.values().length];
+    for (Ops.Name opName : TABLE_OPS)
+      result[opName.ordinal()] = get(opName, maxLayers, dir);
+    return result;
+  }
+
+  private static int numShapes(int maxLayers) {
+    if (maxLayers < 1 || maxLayers > MAX_LAYERS)
+      throw new IllegalArgumentException("Invalid number of layers for an op table: " + maxLayers);
+    return 1 << (8 * maxLayers);
+  }
+
+  private static int shape(int index, int shift) {
+    return ((index >>> shift) << 16) | (index & ((1 << shift) - 1));
+  }
+
+  /**
+   * Make a table in memory.
+   */
+  static OpTable make(Ops.Name opName, int maxLayers) {
+    if (!hasTable(opName))
+      throw new IllegalArgumentException("No op table for " + opName.name());
+    long before = System.currentTimeMillis();
+    int shift = 4 * maxLayers;
+    int[] table = new int[numShapes(maxLayers)];
+    IntStream.range(0, table.length).parallel()
+        .forEach(index -> table[index] = Ops.invoke(opName, shape(index, shift)));
+    System.out.printf("Made op table %s-%d in %d ms\n", opName.code, maxLayers, System.currentTimeMillis() - before);
+    return new OpTable(opName, maxLayers, IntBuffer.wrap(table));
+  }
+
+  /**
+   * Memory map a saved table, making and saving it first if the file is missing or does not match.
+   */
+  static OpTable load(Ops.Name opName, int maxLayers, Path path) {
+    long size = HEADER_SIZE + 4l * numShapes(maxLayers);
+    try {
+      if (!Files.exists(path) || (Files.size(path) != size) || !checkHeader(path, opName, maxLayers))
+        make(opName, maxLayers).write(path);
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, size - HEADER_SIZE);
+        return new OpTable(opName, maxLayers, buffer.order(ORDER).asIntBuffer());
+      }
+    } catch (IOException e) {
+      System.err.printf("Error loading op table: %s\n", path);
+      e.printStackTrace();
+      return make(opName, maxLayers);
+    }
+  }
+
+  private static boolean checkHeader(Path path, Ops.Name opName, int maxLayers) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ORDER);
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      while (header.hasRemaining() && (channel.read(header) >= 0))
+        ;
+    }
+    header.flip();
+    return (header.getInt() == MAGIC) && (header.getInt() == opName.ordinal()) && (header.getInt() == maxLayers);
+  }
+
+  private void write(Path path) throws IOException {
+    System.out.printf("Writing file: %s\n", path);
+    Files.createDirectories(path.toAbsolutePath().getParent());
+    Path temp = Paths.get(path + ".tmp");
+    ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ORDER);
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      buffer.putInt(MAGIC).putInt(opName.ordinal()).putInt(maxLayers).putInt(0);
+      for (int index = 0; index < table.capacity(); ++index) {
+        if (!buffer.hasRemaining()) {
+          buffer.flip();
+          while (buffer.hasRemaining())
+            channel.write(buffer);
+          buffer.clear();
+        }
+        buffer.putInt(table.get(index));
+      }
+      buffer.flip();
+      while (buffer.hasRemaining())
+        channel.write(buffer);
+    }
+    Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  Ops.Name opName() {
+    return opName;
+  }
+
+  int maxLayers() {
+    return maxLayers;
+  }
+
+  @Override
+  public int applyAsInt(int shape) {
+    int v1 = Shape.v1(shape);
+    int v2 = Shape.v2(shape);
+    if (((v1 | v2) >>> shift) != 0)
+      return Ops.invoke(opName, shape);
+    return table.get((v2 << shift) | v1);
+  }
+
+}
@@ -14,6 +14,13 @@ enum OpTests {
   KEY_02(Ops::keyValue, 0x10000000, 0x10000000) {},
   KEY_03(Ops::keyValue, 0x87654321, 0x1e6a2c48) {},
 
+  CUT_KEY_01(Ops::cutKeyValue, 0x4321, 0x1c84) {},
+  CUT_KEY_02(Ops::cutKeyValue, 0x0002, 0x0001) {},
+
+  TRANSFORM_01(Ops::transform, 0x0001, 2, 0x0004) {},
+  TRANSFORM_02(Ops::transform, 0x1234, 4, 0x84c2) {},
+  TRANSFORM_03(Ops::transform, 0x0001, 5, 0x0001) {},
+
   ROTATE_01(Ops::rotateRight, 0x0001, 0x0002) {},
   ROTATE_02(Ops::rotate180, 0x0001, 0x0004) {},
   ROTATE_03(Ops::rotateLeft, 0x0001, 0x0008) {},
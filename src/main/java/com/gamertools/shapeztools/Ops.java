@@ -4,31 +4,44 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Ops
  */
 class Ops {
 
+  /**
+   * Op counters. Each counter is a LongAdder, threads add to their own cell and the cells are summed when read.
+   * Run with -Dops.stats=false to compile the counters out, or set enabled to false to stop counting at run time.
+   */
   enum Stats {
     CUT, SWAP, STACK, ROTATE, PINPUSH, CRYSTAL, COLLAPSE;
 
-    AtomicLong value = new AtomicLong();
+    // A static final flag is a constant to the JIT, increment() is empty when it is false
+    static final boolean COUNT = Boolean.parseBoolean(System.getProperty("ops.stats", "true"));
+    // Volatile so a change is seen by running ops, the JIT could otherwise hoist the read out of their loops
+    static volatile boolean enabled = true;
+
+    private final LongAdder value = new LongAdder();
 
     static void clear() {
       for (Stats t : Stats.values())
-        t.value.set(0);
+        t.value.reset();
     }
 
     void increment() {
-      value.incrementAndGet();
+      if (COUNT && enabled)
+        value.increment();
+    }
+
+    long get() {
+      return value.sum();
     }
 
     static String asString() {
       return String.format("cut: %d, swap: %d, stack: %d, rotate: %d, pinPush %d, crystal %d, collapse: %d\n",
-          CUT.value.get(), SWAP.value.get(), STACK.value.get(), ROTATE.value.get(), PINPUSH.value.get(),
-          CRYSTAL.value.get(), COLLAPSE.value.get());
+          CUT.get(), SWAP.get(), STACK.get(), ROTATE.get(), PINPUSH.get(), CRYSTAL.get(), COLLAPSE.get());
     }
   }
 
@@ -131,6 +144,103 @@ class Ops {
     return result;
   }
 
+  /**
+   * Transform the shape to one of its 8 rotations and mirror images.
+   *
+   * @param shape
+   * @param num 0-3 rotate right num steps, 4-7 mirror then rotate right (num - 4) steps
+   * @return Value of the transformed shape
+   */
+  static int transform(int shape, int num) {
+    if (num >= 4)
+      shape = mirrorValue(shape);
+    return rotate(shape, num & 0x3);
+  }
+
+  /**
+   * Find the transform that makes the shape from its key value.
+   *
+   * @param shape
+   * @param key   key value of the shape
+   * @return Transform number, see transform(), or -1 if the key is not the shape's key value
+   */
+  static int keyTransform(int shape, int key) {
+    for (int num = 0; num < 8; ++num) {
+      if (transform(key, num) == shape)
+        return num;
+    }
+    return -1;
+  }
+
+  /* Transforms that map each half to a half, a half turn and the mirror images, see transform() */
+  static final int[] CUT_TRANSFORMS = { 0, 2, 4, 6 };
+
+  /**
+   * Compute the shape's key value over CUT_TRANSFORMS. Every op has a matching op on a shape transformed by one of
+   * them, so shapes with the same cut key cost the same to build. A quarter turn is not one of them, it moves the cut
+   * line.
+   *
+   * @param shape
+   * @return Key value
+   */
+  static int cutKeyValue(int shape) {
+    int mvalue = mirrorValue(shape);
+    return umin(umin(shape, rotate(shape, 2)), umin(mvalue, rotate(mvalue, 2)));
+  }
+
+  /**
+   * Name of the op that does the same thing to the mirror image of a shape.
+   *
+   * @param opName
+   * @return Name of the mirrored op
+   */
+  static Name mirrorName(Name opName) {
+    switch (opName) {
+    case ROTATE_RIGHT:
+      return Name.ROTATE_LEFT;
+    case ROTATE_LEFT:
+      return Name.ROTATE_RIGHT;
+    case CUT_RIGHT:
+      return Name.CUT_LEFT;
+    case CUT_LEFT:
+      return Name.CUT_RIGHT;
+    case SWAP_RIGHT:
+      return Name.SWAP_LEFT;
+    case SWAP_LEFT:
+      return Name.SWAP_RIGHT;
+    default:
+      return opName;
+    }
+  }
+
+  /**
+   * Name of the op that does the same thing to a shape transformed by one of CUT_TRANSFORMS.
+   *
+   * @param opName
+   * @param num    transform number, see transform()
+   * @return Name of the transformed op
+   */
+  static Name transformName(Name opName, int num) {
+    if ((num & 1) != 0)
+      throw new IllegalArgumentException("Transform moves the cut line: " + num);
+    Name result = (num >= 4) ? mirrorName(opName) : opName;
+    if ((num & 0x3) == 0)
+      return result;
+    // A half turn swaps the halves, rotations are the same
+    switch (result) {
+    case CUT_RIGHT:
+      return Name.CUT_LEFT;
+    case CUT_LEFT:
+      return Name.CUT_RIGHT;
+    case SWAP_RIGHT:
+      return Name.SWAP_LEFT;
+    case SWAP_LEFT:
+      return Name.SWAP_RIGHT;
+    default:
+      return result;
+    }
+  }
+
   /**
    * Identity operation.
    * 
@@ -214,57 +324,47 @@ class Ops {
     return base | (Shape.PIN_MASK << quad);
   }
 
-  private static final int[][] NEXT_SPOTS2 = { { 1, 4 }, { 0, 5 }, { 3, 6 }, { 2, 7 }, { 0, 5, 8 }, { 1, 4, 9 },
-      { 2, 7, 10 }, { 3, 6, 11 }, { 4, 9, 12 }, { 5, 8, 13 }, { 6, 11, 14 }, { 7, 10, 15 }, { 8, 13 }, { 9, 12 },
-      { 10, 15 }, { 11, 14 } };
-
-  private static final int[][] NEXT_SPOTS4 = { { 1, 3, 4 }, { 0, 2, 5 }, { 1, 3, 6 }, { 0, 2, 7 }, { 0, 5, 7, 8 },
-      { 1, 4, 6, 9 }, { 2, 5, 7, 10 }, { 3, 4, 6, 11 }, { 4, 9, 11, 12 }, { 5, 8, 10, 13 }, { 6, 9, 11, 14 },
-      { 7, 8, 10, 15 }, {}, {}, {}, {} };
-
   /**
-   * @param shape
-   * @param todo
-   * @param mesh
-   * @return
+   * Find all crystals connected to the seed crystals, where each quad is next to the other quad in its half of the
+   * layer and the same quad in the layers above and below. This is the mesh for cuts.
+   *
+   * @param crystals crystal spots of the shape (v1 & v2)
+   * @param seeds    crystal spots to start from
+   * @return crystal bits (v1 and v2) of the connected spots
    */
-  private static int findCrystals(int shape, List<Integer> todo, int[][] mesh) {
-    int result = 0;
-    int num, val;
-    for (int i = 0; i < todo.size(); ++i) {
-      num = todo.get(i);
-      result |= Shape.CRYSTAL_MASK << num;
-      for (int spot : mesh[num]) {
-        if (todo.contains(spot))
-          continue;
-        val = (shape >>> spot) & Shape.CRYSTAL_MASK;
-        if (val == Shape.CRYSTAL_MASK)
-          todo.add(spot);
-      }
+  private static int findCrystals2(int crystals, int seeds) {
+    int found = seeds;
+    int next;
+    while (true) {
+      next = ((found & 0x5555) << 1) | ((found & 0xaaaa) >>> 1) | ((found << 4) & 0xffff) | (found >>> 4);
+      next = found | (next & crystals);
+      if (next == found)
+        return found * Shape.CRYSTAL_MASK;
+      found = next;
     }
-    return result;
   }
 
-  private static int findCrystals_new(int shape, List<Integer> todo, int[][] mesh) {
-    int result = 0;
-    int num, val;
-    boolean[] todo2 = new boolean[Shape.NUM_SPOTS];
-    for (int i = 0; i < todo.size(); ++i)
-      todo2[todo.get(i)] = true;
-    for (int i = 0; i < todo.size(); ++i) {
-      num = todo.get(i);
-      result |= Shape.CRYSTAL_MASK << num;
-      for (int spot : mesh[num]) {
-        if (todo2[spot])
-          continue;
-        val = (shape >>> spot) & Shape.CRYSTAL_MASK;
-        if (val == Shape.CRYSTAL_MASK) {
-          todo.add(spot);
-          todo2[spot] = true;
-        }
-      }
+  /**
+   * Find all crystals connected to the seed crystals, where each quad is next to the quads on either side of it and
+   * the same quad in the layers above and below. This is the mesh for pin push. The top layer is found but not
+   * followed, it is pushed off the shape.
+   *
+   * @param crystals crystal spots of the shape (v1 & v2)
+   * @param seeds    crystal spots to start from
+   * @return crystal bits (v1 and v2) of the connected spots
+   */
+  private static int findCrystals4(int crystals, int seeds) {
+    int found = seeds;
+    int from, next;
+    while (true) {
+      from = found & 0x0fff;
+      next = ((from << 1) & 0xeeee) | ((from >>> 3) & 0x1111) | ((from >>> 1) & 0x7777) | ((from << 3) & 0x8888)
+          | (from << 4) | (from >>> 4);
+      next = found | (next & crystals);
+      if (next == found)
+        return found * Shape.CRYSTAL_MASK;
+      found = next;
     }
-    return result;
   }
 
   /**
@@ -347,22 +447,14 @@ class Ops {
 
   static int cutLeft(int shape) {
     Stats.CUT.increment();
-    int[] layers = Shape.toLayers(shape);
     // Step 1: break all cut crystals
     // Check all 8 places that a crystal can span the cut
-    int layer;
-    List<Integer> todo = new ArrayList<>();
-    for (int layerNum = 0; layerNum < layers.length; ++layerNum) {
-      layer = layers[layerNum];
-      if ((layer & 0x99) == 0x99)
-        todo.add(4 * layerNum + 3);
-      if ((layer & 0x66) == 0x66)
-        todo.add(4 * layerNum + 2);
-    }
-    // Find all connected crystals
-    int found = findCrystals(shape, todo, NEXT_SPOTS2);
+    int crystals = Shape.v1(shape) & Shape.v2(shape);
+    int both03 = crystals & (crystals >>> 3) & 0x1111;
+    int both12 = (crystals >>> 1) & (crystals >>> 2) & 0x1111;
+    int seeds = (both03 << 3) | (both12 << 2);
     // Break all connected crystals
-    shape &= ~found;
+    shape &= ~findCrystals2(crystals, seeds);
 
     // Step 2: Collapse parts
     return collapse(shape & 0xcccccccc, new int[] { 2, 3 });
@@ -370,22 +462,14 @@ class Ops {
 
   static int cutRight(int shape) {
     Stats.CUT.increment();
-    int[] layers = Shape.toLayers(shape);
     // Step 1: break all cut crystals
     // Check all 8 places that a crystal can span the cut
-    int layer;
-    List<Integer> todo = new ArrayList<>();
-    for (int layerNum = 0; layerNum < layers.length; ++layerNum) {
-      layer = layers[layerNum];
-      if ((layer & 0x99) == 0x99)
-        todo.add(4 * layerNum + 0);
-      if ((layer & 0x66) == 0x66)
-        todo.add(4 * layerNum + 1);
-    }
-    // Find all connected crystals
-    int found = findCrystals(shape, todo, NEXT_SPOTS2);
+    int crystals = Shape.v1(shape) & Shape.v2(shape);
+    int both03 = crystals & (crystals >>> 3) & 0x1111;
+    int both12 = (crystals >>> 1) & (crystals >>> 2) & 0x1111;
+    int seeds = both03 | (both12 << 1);
     // Break all connected crystals
-    shape &= ~found;
+    shape &= ~findCrystals2(crystals, seeds);
 
     // Step 2: Collapse parts
     return collapse(shape & 0x33333333, new int[] { 0, 1 });
@@ -399,23 +483,12 @@ class Ops {
     int v2 = Shape.v2(shape);
     int pins = ((v1 | v2) & 0xf) * Shape.PIN_MASK;
 
-    int result = 0;
     // Step 1: break all cut crystals
-    // Check all 4 places that a crystal can span the cut
-    List<Integer> todo = new ArrayList<>();
-    int spot1, spot2;
-    for (int spot = 8; spot < 12; ++spot) {
-      // check for crystal at spot and the spot directly above it
-      spot1 = (shape >>> spot) & Shape.CRYSTAL_MASK;
-      spot2 = (shape >>> (spot + 4)) & Shape.CRYSTAL_MASK;
-      if (spot1 == Shape.CRYSTAL_MASK && spot2 == Shape.CRYSTAL_MASK) {
-        todo.add(spot);
-      }
-    }
-    // Find all connected crystals
-    int found = findCrystals(shape, todo, NEXT_SPOTS4);
+    // Check all 4 places that a crystal can span the cut, a crystal with a crystal directly above it
+    int crystals = v1 & v2;
+    int seeds = crystals & (crystals >>> 4) & 0x0f00;
     // Break all connected crystals
-    shape &= ~found;
+    shape &= ~findCrystals4(crystals, seeds);
 
     // Step 2: Raise shape and add pins
     v1 = Shape.v1(shape);
@@ -4,15 +4,35 @@ package com.gamertools.shapeztools;
  * A ShapeDB contains builds for a set of shapes.
  * The data may be split into multiple files.
  * The filename format SDBXY contains shapes with int values of XxxxYxxx.
+ * A shard may also be in binary format, SDBXY.bin, which is used instead of the text file.
+ * Loaded shards are kept in a CLOCK cache bounded by a number of shards and an estimate of their size.
+ * A ShapeDB is thread safe. Each shard is loaded once by a loader thread, lookups in a loaded shard take no locks.
+ * A shard that fails to load is not kept, the lookups waiting for it throw and the next lookup loads it again.
+ * A shard may have an existence filter, SDBXY.flt, see ShapeFilter. Filters are loaded by open() and a shape that is
+ * not in its shard's filter, or whose shard does not exist, is not looked up in the shard.
  */
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 /**
@@ -21,18 +41,35 @@ import java.util.stream.Stream;
 public class ShapeDB {
 
   private static final String PREFIX = "SDB";
+  private static final String BINARY_SUFFIX = ".bin";
+  private static final String FILTER_SUFFIX = ".flt";
+  private static final int NUM_SHARDS = 256;
   private Path dirPath;
-  // private List<Path> files = new ArrayList<>();
-  private Set<Integer> register = new HashSet<>();
 
-  class Build {
+  /*
+   * Binary shard record, sorted by unsigned shape:
+   * shape (4) | shape1 (4) | shape2 (4) | op ordinal (1) | unused (1) | cost (2)
+   */
+  static final int RECORD_SIZE = 16;
+  private static final Ops.Name[] OP_NAMES = Ops.Name.values();
+
+  /* Estimated heap bytes per build of a text shard: map node, Integer key and Build */
+  private static final int TEXT_BUILD_BYTES = 88;
+
+  static class Build {
     Ops.Name opName;
     int shape1, shape2;
+    int cost;
 
     Build(Ops.Name opName, int shape1, int shape2) {
+      this(opName, shape1, shape2, 0);
+    }
+
+    Build(Ops.Name opName, int shape1, int shape2, int cost) {
       this.opName = opName;
       this.shape1 = shape1;
       this.shape2 = shape2;
+      this.cost = cost;
     }
 
     public String toString() {
@@ -45,35 +82,200 @@ public class ShapeDB {
     }
   }
 
-  private Map<Integer, Build> builds = new HashMap<>();
+  /**
+   * The builds of one SDBXY file.
+   */
+  private interface Shard {
+    Build get(int shape);
+
+    int[] shapes();
+
+    /* Estimated size in bytes, heap for a text shard and mapped file for a binary shard */
+    long bytes();
+  }
+
+  /* Text shard, parsed into a map */
+  private static class TextShard implements Shard {
+    private final Map<Integer, Build> builds = new HashMap<>();
+
+    public Build get(int shape) {
+      return builds.get(shape);
+    }
+
+    public int[] shapes() {
+      return builds.keySet().stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    public long bytes() {
+      return (long) TEXT_BUILD_BYTES * builds.size();
+    }
+  }
+
+  /* Binary shard, memory mapped and searched in place */
+  private static class BinaryShard implements Shard {
+    private final MappedByteBuffer buffer;
+    private final int size;
+
+    BinaryShard(MappedByteBuffer buffer) {
+      this.buffer = buffer;
+      this.size = buffer.capacity() / RECORD_SIZE;
+    }
+
+    public Build get(int shape) {
+      int low = 0;
+      int high = size - 1;
+      int mid, cmp, offset;
+      while (low <= high) {
+        mid = (low + high) >>> 1;
+        offset = mid * RECORD_SIZE;
+        cmp = Integer.compareUnsigned(buffer.getInt(offset), shape);
+        if (cmp < 0) {
+          low = mid + 1;
+        } else if (cmp > 0) {
+          high = mid - 1;
+        } else {
+          return new Build(OP_NAMES[buffer.get(offset + 12)], buffer.getInt(offset + 4), buffer.getInt(offset + 8),
+              buffer.getShort(offset + 14) & 0xffff);
+        }
+      }
+      return null;
+    }
+
+    public int[] shapes() {
+      int[] shapes = new int[size];
+      for (int i = 0; i < size; ++i)
+        shapes[i] = buffer.getInt(i * RECORD_SIZE);
+      return shapes;
+    }
+
+    public long bytes() {
+      return buffer.capacity();
+    }
+  }
+
+  /* A shard that is loaded or being loaded */
+  private static class Entry {
+    final int index;
+    final CompletableFuture<Shard> shard;
+    volatile boolean referenced = true;
+    long bytes;
+
+    Entry(int index) {
+      this.index = index;
+      this.shard = new CompletableFuture<>();
+    }
+  }
+
+  private static final ExecutorService loader = Executors
+      .newFixedThreadPool(Runtime.getRuntime().availableProcessors(), task -> {
+        Thread thread = new Thread(task, "shapedb-loader");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  private final Map<Integer, Entry> shards = new ConcurrentHashMap<>();
+  private final int maxShards;
+  private final long maxBytes;
 
-  private ShapeDB(Path dirPath) {
+  // Loaded shards in CLOCK order, guarded by the ShapeDB lock
+  private final ArrayDeque<Entry> clock = new ArrayDeque<>();
+  private long shardBytes = 0;
+  private long evictions = 0;
+
+  private final LongAdder lookups = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder filtered = new LongAdder();
+
+  // Shards that have a text or binary file, and their filters if any, fixed by open()
+  private final boolean[] present = new boolean[NUM_SHARDS];
+  private final ShapeFilter[] filters = new ShapeFilter[NUM_SHARDS];
+
+  private ShapeDB(Path dirPath, int maxShards, long maxBytes) {
     this.dirPath = dirPath;
-    // try (Stream<Path> stream = Files.list(dirPath)) {
-    // files = stream.filter(file ->
-    // !Files.isDirectory(file)).collect(Collectors.toList());
-    // } catch (Exception e) {
-    // e.printStackTrace();
-    // }
+    this.maxShards = maxShards;
+    this.maxBytes = maxBytes;
+    for (int index = 0; index < NUM_SHARDS; ++index) {
+      Path textFile = dirPath.resolve(fileName(index));
+      Path binFile = dirPath.resolve(fileName(index) + BINARY_SUFFIX);
+      present[index] = Files.exists(textFile) || Files.exists(binFile);
+      if (present[index])
+        filters[index] = readFilter(index, Files.exists(binFile) ? binFile : textFile);
+    }
+  }
+
+  /* A filter older than its shard is ignored, the shard may have new shapes */
+  private ShapeFilter readFilter(int index, Path shardFile) {
+    Path filterFile = dirPath.resolve(fileName(index) + FILTER_SUFFIX);
+    try {
+      if (!Files.exists(filterFile))
+        return null;
+      if (Files.getLastModifiedTime(filterFile).compareTo(Files.getLastModifiedTime(shardFile)) < 0) {
+        System.err.printf("Ignoring old filter: %s\n", filterFile);
+        return null;
+      }
+      return ShapeFilter.read(filterFile);
+    } catch (Exception e) {
+      e.printStackTrace();
+      return null;
+    }
   }
 
   public static ShapeDB open(String dirName) {
+    return open(dirName, Integer.MAX_VALUE, Long.MAX_VALUE);
+  }
+
+  /**
+   * Open a ShapeDB that keeps at most maxShards shards and about maxBytes of shard data loaded.
+   * The most recently used shard is always kept, even if it is larger than maxBytes.
+   */
+  public static ShapeDB open(String dirName, int maxShards, long maxBytes) {
     Path dirPath = Paths.get(dirName);
     if (!Files.isDirectory(dirPath)) {
       System.err.printf("Directory not found: %s\n", dirName);
       return null;
     }
-    return new ShapeDB(dirPath);
+    if (maxShards < 1)
+      throw new IllegalArgumentException("Invalid number of shards: " + maxShards);
+    return new ShapeDB(dirPath, maxShards, maxBytes);
   }
 
-  private int index(int shape) {
+  static int index(int shape) {
     int v1 = (Shape.v1(shape) & 0xf000) >>> 12;
     int v2 = (Shape.v2(shape) & 0xf000) >>> 8;
     return v1 | v2;
   }
 
-  private void readFile(int index) {
-    Path file = dirPath.resolve(String.format("%s%02x", PREFIX, index));
+  static String fileName(int index) {
+    return String.format("%s%02x", PREFIX, index);
+  }
+
+  private Shard readShard(int index) throws IOException {
+    SolverEvents.ShardLoad event = new SolverEvents.ShardLoad();
+    event.begin();
+    Shard shard = null;
+    Path binFile = dirPath.resolve(fileName(index) + BINARY_SUFFIX);
+    if (Files.exists(binFile)) {
+      try (FileChannel channel = FileChannel.open(binFile, StandardOpenOption.READ)) {
+        shard = new BinaryShard(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }
+    if (shard == null)
+      shard = readFile(index);
+    if (event.shouldCommit()) {
+      event.index = index;
+      event.binary = shard instanceof BinaryShard;
+      event.bytes = shard.bytes();
+      event.commit();
+    }
+    return shard;
+  }
+
+  /* A shard that cannot be read in full is an error, a partial shard would hide the builds after the bad line */
+  private TextShard readFile(int index) throws IOException {
+    TextShard shard = new TextShard();
+    Path file = dirPath.resolve(fileName(index));
     try (Stream<String> lines = Files.lines(file)) {
       lines.forEach(line -> {
         String[] values = line.split(",");
@@ -81,20 +283,259 @@ public class ShapeDB {
         Ops.Name opName = Ops.nameByCode.get(values[1]);
         int shape1 = Integer.parseUnsignedInt(values[2], 16);
         int shape2 = Integer.parseUnsignedInt(values[3], 16);
-        // int cost = Integer.parseUnsignedInt(values[4], 16);
-        builds.put(shape, new Build(opName, shape1, shape2));
+        int cost = Integer.parseUnsignedInt(values[4], 16);
+        if (opName == null)
+          throw new IllegalArgumentException("Unknown op: " + values[1]);
+        shard.builds.put(shape, new Build(opName, shape1, shape2, cost));
       });
-    } catch (Exception e) {
-      e.printStackTrace();
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    } catch (RuntimeException e) {
+      throw new IOException("Bad line in " + file, e);
     }
+    return shard;
+  }
+
+  /**
+   * @return false if the shape is not in the DB, true if it may be
+   */
+  boolean mightContain(int shape) {
+    int index = index(shape);
+    return present[index] && ((filters[index] == null) || filters[index].mightContain(shape));
   }
 
   public Build getBuild(int shape) {
     int index = index(shape);
-    if (!register.contains(index)) {
-      readFile(index);
-      register.add(index);
+    lookups.increment();
+    if (!mightContain(shape)) {
+      filtered.increment();
+      return null;
+    }
+    Entry entry = shards.get(index);
+    if (entry == null) {
+      Entry created = new Entry(index);
+      entry = shards.putIfAbsent(index, created);
+      if (entry == null) {
+        entry = created;
+        load(entry);
+      }
+    } else if (!entry.referenced) {
+      entry.referenced = true;
+    }
+    try {
+      return entry.shard.join().get(shape);
+    } catch (CompletionException e) {
+      throw loadError(e);
+    }
+  }
+
+  /* The error that failed a shard load, unwrapped from the future */
+  private static RuntimeException loadError(CompletionException e) {
+    Throwable cause = e.getCause();
+    if (cause instanceof RuntimeException)
+      return (RuntimeException) cause;
+    if (cause instanceof Error)
+      throw (Error) cause;
+    return e;
+  }
+
+  /*
+   * Load a shard on a loader thread, only the thread that added the entry calls this. A failed load fails the lookups
+   * waiting for it and removes the entry, so the next lookup tries again.
+   */
+  private void load(Entry entry) {
+    misses.increment();
+    CompletableFuture.supplyAsync(() -> {
+      try {
+        return readShard(entry.index);
+      } catch (IOException e) {
+        System.err.printf("Error reading shard: %s\n", fileName(entry.index));
+        throw new UncheckedIOException(e);
+      }
+    }, loader).whenComplete((shard, e) -> {
+      if (shard != null) {
+        admit(entry, shard.bytes());
+        entry.shard.complete(shard);
+      } else {
+        shards.remove(entry.index, entry);
+        entry.shard.completeExceptionally((e instanceof CompletionException) ? e.getCause() : e);
+      }
+    });
+  }
+
+  private synchronized void admit(Entry entry, long bytes) {
+    entry.bytes = bytes;
+    clock.add(entry);
+    shardBytes += bytes;
+    evict();
+  }
+
+  /*
+   * Drop shards until the cache is within its limits. Shards used since the last sweep get a second chance.
+   * Mapped files are unmapped by GC.
+   */
+  private void evict() {
+    Entry entry;
+    while ((clock.size() > 1) && ((clock.size() > maxShards) || (shardBytes > maxBytes))) {
+      entry = clock.poll();
+      if (entry.referenced) {
+        entry.referenced = false;
+        clock.add(entry);
+      } else {
+        shards.remove(entry.index, entry);
+        shardBytes -= entry.bytes;
+        ++evictions;
+      }
+    }
+  }
+
+  /**
+   * Find the shapes that have builds. Shapes rejected by the filters are dropped first, the rest are looked up a shard
+   * at a time.
+   *
+   * @return buildable shapes, in shard order and unsigned order within a shard
+   */
+  int[] buildable(int[] shapes) {
+    int[] candidates = IntStream.of(shapes).parallel().filter(this::mightContain).toArray();
+    lookups.add(shapes.length - candidates.length);
+    filtered.add(shapes.length - candidates.length);
+    int[][] byShard = ShapeWriter.partition(candidates, ShapeDB::index, NUM_SHARDS);
+    return Arrays.stream(byShard).flatMapToInt(group -> IntStream.of(group).filter(shape -> getBuild(shape) != null))
+        .toArray();
+  }
+
+  long hits() {
+    return lookups.sum() - misses.sum() - filtered.sum();
+  }
+
+  long filtered() {
+    return filtered.sum();
+  }
+
+  long misses() {
+    return misses.sum();
+  }
+
+  synchronized long evictions() {
+    return evictions;
+  }
+
+  synchronized String stats() {
+    return String.format("shards %d, %,d bytes, hits %,d, misses %,d, filtered %,d, evictions %,d", clock.size(),
+        shardBytes, hits(), misses(), filtered(), evictions);
+  }
+
+  /**
+   * Convert the text shards in one directory to binary shards in another.
+   */
+  static void convert(String srcName, String dstName) {
+    Path srcPath = Paths.get(srcName);
+    Path dstPath = Paths.get(dstName);
+    for (int index = 0; index <= 0xff; ++index) {
+      Path srcFile = srcPath.resolve(fileName(index));
+      if (!Files.isRegularFile(srcFile))
+        continue;
+      Path dstFile = dstPath.resolve(fileName(index) + BINARY_SUFFIX);
+      System.out.printf("Writing file: %s\n", dstFile);
+      try {
+        Files.createDirectories(dstPath);
+        writeShard(dstFile, readRecords(srcFile));
+      } catch (Exception e) {
+        System.err.printf("Error converting file: %s\n", srcFile);
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Write an existence filter for each shard of a DB directory, from its binary shard if it has one.
+   */
+  static void writeFilters(String dirName) {
+    ShapeDB db = open(dirName);
+    if (db == null)
+      return;
+    for (int index = 0; index < NUM_SHARDS; ++index) {
+      if (!db.present[index])
+        continue;
+      Path file = db.dirPath.resolve(fileName(index) + FILTER_SUFFIX);
+      System.out.printf("Writing file: %s\n", file);
+      try {
+        ShapeFilter.write(file, db.readShard(index).shapes());
+      } catch (Exception e) {
+        System.err.printf("Error writing filter: %s\n", file);
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * @return true if the DB directory has a binary shard with no text shard
+   */
+  static boolean hasBinaryOnly(Path dirPath, int index) {
+    return Files.exists(dirPath.resolve(fileName(index) + BINARY_SUFFIX))
+        && !Files.exists(dirPath.resolve(fileName(index)));
+  }
+
+  /**
+   * Rewrite the binary shard and filter of a text shard that has changed, if the DB directory has them, so they do
+   * not hide the new builds.
+   */
+  static void refreshShard(Path dirPath, int index) throws Exception {
+    Path binFile = dirPath.resolve(fileName(index) + BINARY_SUFFIX);
+    Path filterFile = dirPath.resolve(fileName(index) + FILTER_SUFFIX);
+    if (!Files.exists(binFile) && !Files.exists(filterFile))
+      return;
+    ByteBuffer records = readRecords(dirPath.resolve(fileName(index)));
+    int[] shapes = new int[records.remaining() / RECORD_SIZE];
+    for (int i = 0; i < shapes.length; ++i)
+      shapes[i] = records.getInt(i * RECORD_SIZE);
+    if (Files.exists(binFile)) {
+      System.out.printf("Writing file: %s\n", binFile);
+      writeShard(binFile, records);
+    }
+    if (Files.exists(filterFile)) {
+      System.out.printf("Writing file: %s\n", filterFile);
+      ShapeFilter.write(filterFile, shapes);
+    }
+  }
+
+  /**
+   * Read a text shard as binary records sorted by unsigned shape.
+   */
+  private static ByteBuffer readRecords(Path file) throws Exception {
+    IntList values = new IntList();
+    try (Stream<String> lines = Files.lines(file)) {
+      lines.forEach(line -> {
+        String[] fields = line.split(",");
+        values.add(Integer.parseUnsignedInt(fields[0], 16), Integer.parseUnsignedInt(fields[2], 16));
+        values.add(Integer.parseUnsignedInt(fields[3], 16), Ops.nameByCode.get(fields[1]).ordinal());
+        values.add(Integer.parseUnsignedInt(fields[4], 16));
+      });
+    }
+    // Sort line numbers by unsigned shape, flipping the sign bit makes signed order match unsigned order
+    int size = values.size() / 5;
+    long[] order = new long[size];
+    for (int i = 0; i < size; ++i)
+      order[i] = ((long) (values.get(5 * i) ^ Integer.MIN_VALUE) << 32) | i;
+    Arrays.parallelSort(order);
+
+    ByteBuffer records = ByteBuffer.allocate(size * RECORD_SIZE);
+    int line;
+    for (long key : order) {
+      line = 5 * (int) key;
+      records.putInt(values.get(line)).putInt(values.get(line + 1)).putInt(values.get(line + 2));
+      records.put((byte) values.get(line + 3)).put((byte) 0).putShort((short) values.get(line + 4));
+    }
+    return records.flip();
+  }
+
+  private static void writeShard(Path file, ByteBuffer records) throws Exception {
+    Path temp = Paths.get(file + ".tmp");
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (records.hasRemaining())
+        channel.write(records);
     }
-    return builds.get(shape);
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
   }
 }
@@ -1,19 +1,22 @@
 package com.gamertools.shapeztools;
 
-import java.io.FileWriter;
-import java.io.PrintWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PrimitiveIterator;
 import java.util.Set;
+import java.util.function.IntUnaryOperator;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 /**
@@ -21,18 +24,52 @@ import java.util.stream.Stream;
  */
 public class ShapeFile {
 
+  /* Text DB line: shape,op,shape1,shape2,cost with 8 digit shapes, 2 letter op codes and a 2 digit cost */
+  private static final int LINE_SIZE = 33;
+  private static final int MAX_LINE_SIZE = 64;
+  private static final int CHUNK_SIZE = 1 << 24;
+
+  /* Hex digit values, -1 for other bytes */
+  private static final int[] HEX_VALUES = new int[256];
+  /* Op names by their 2 code bytes */
+  private static final Ops.Name[] OP_NAMES_BY_CODE = new Ops.Name[1 << 16];
+
+  static {
+    Arrays.fill(HEX_VALUES, -1);
+    for (int i = 0; i < 16; ++i) {
+      HEX_VALUES[Character.forDigit(i, 16)] = i;
+      HEX_VALUES[Character.toUpperCase(Character.forDigit(i, 16))] = i;
+    }
+    for (Ops.Name opName : Ops.Name.values())
+      OP_NAMES_BY_CODE[(opName.code.charAt(0) << 8) | opName.code.charAt(1)] = opName;
+  }
+
+  /* Top byte of a shape, buckets in this order are in unsigned order */
+  private static final IntUnaryOperator TOP_BYTE = shape -> shape >>> 24;
+  private static final int NUM_BUCKETS = 256;
+
   static void write(String name, int[] data) {
-    Set<Integer> dataSet = IntStream.of(data).boxed().collect(Collectors.toSet());
-    write(name, dataSet, false);
+    writeShapes(name, data, false);
   }
 
   static void write(String name, Set<Integer> data) {
     write(name, data, false);
   }
 
+  static void write(String name, ShapeSet data) {
+    System.out.printf("Writing file: %s\n", name);
+    try (ShapeWriter out = new ShapeWriter(Paths.get(name), false)) {
+      PrimitiveIterator.OfInt shapes = data.stream().iterator();
+      while (shapes.hasNext())
+        out.writeShape(shapes.nextInt());
+    } catch (Exception e) {
+      System.err.printf("Error writing file: %s\n", name);
+      e.printStackTrace();
+    }
+  }
+
   static void append(String name, int[] data) {
-    Set<Integer> dataSet = IntStream.of(data).boxed().collect(Collectors.toSet());
-    write(name, dataSet, true);
+    writeShapes(name, data, true);
   }
 
   static void append(String name, Set<Integer> data) {
@@ -43,6 +80,30 @@ public class ShapeFile {
     writeDB(name, data, false);
   }
 
+  static void writeDB(String name, BuildTable data) {
+    System.out.printf("Writing file: %s\n", name);
+    SolverEvents.DBWrite event = new SolverEvents.DBWrite();
+    event.begin();
+    try (ShapeWriter out = new ShapeWriter(Paths.get(name), false)) {
+      for (int[] bucket : ShapeWriter.partition(data.shapes(), TOP_BYTE, NUM_BUCKETS)) {
+        for (int shape : bucket)
+          out.writeBuild(data.get(shape));
+      }
+    } catch (Exception e) {
+      System.err.printf("Error writing file: %s\n", name);
+      e.printStackTrace();
+    }
+    commit(event, name, data.size());
+  }
+
+  private static void commit(SolverEvents.DBWrite event, String name, long builds) {
+    if (event.shouldCommit()) {
+      event.file = name;
+      event.builds = builds;
+      event.commit();
+    }
+  }
+
   static void appendDB(String name, Map<Integer, Solver.Build> data) {
     writeDB(name, data, true);
   }
@@ -56,9 +117,8 @@ public class ShapeFile {
     }
   }
 
-  static Set<Integer> read(String name) {
-    final int SIZE = 350000000;
-    Set<Integer> result = new HashSet<>(SIZE);
+  static ShapeSet read(String name, int maxLayers) {
+    ShapeSet result = new ShapeSet(maxLayers);
 
     /* Get list of files */
     Path file = Paths.get(name);
@@ -66,6 +126,8 @@ public class ShapeFile {
       System.err.printf("Unknown file: %s\n", name);
       return null;
     }
+    if (ShapeList.isShapeList(file))
+      return ShapeList.read(name, maxLayers);
 
     System.out.printf("Reading file: %s\n", file);
     try (Stream<String> lines = Files.lines(file)) {
@@ -84,40 +146,31 @@ public class ShapeFile {
   }
 
   static void write(String name, Set<Integer> data, boolean append) {
-    final int BIG_DATA_SIZE = 10000000;
+    writeShapes(name, data.stream().mapToInt(Integer::intValue).toArray(), append);
+  }
+
+  /**
+   * Write shapes in unsigned order, without duplicates.
+   */
+  private static void writeShapes(String name, int[] data, boolean append) {
     System.out.printf("Writing file: %s\n", name);
-    try (FileWriter file = new FileWriter(name, append)) {
-      PrintWriter out = new PrintWriter(file);
-      if (data.size() < BIG_DATA_SIZE)
-        writeFast(out, data);
-      else
-        writeSlow(out, data);
+    try (ShapeWriter out = new ShapeWriter(Paths.get(name), append)) {
+      for (int[] bucket : ShapeWriter.partition(data, TOP_BYTE, NUM_BUCKETS)) {
+        for (int i = 0; i < bucket.length; ++i) {
+          if ((i == 0) || (bucket[i] != bucket[i - 1]))
+            out.writeShape(bucket[i]);
+        }
+      }
     } catch (Exception e) {
       System.err.printf("Error writing file: %s\n", name);
       e.printStackTrace();
     }
   }
 
-  private static void writeFast(PrintWriter out, Set<Integer> data) {
-    Integer[] shapes = data.toArray(Integer[]::new);
-    Arrays.parallelSort(shapes, (x, y) -> Integer.compareUnsigned(x, y));
-    for (Integer shape : shapes)
-      out.printf("%08x\n", shape);
-  }
-
-  private static void writeSlow(PrintWriter out, Set<Integer> data) {
-    int shape;
-    for (long i = 0; i <= 0xffffffffl; ++i) {
-      shape = (int) i;
-      if (data.contains(shape))
-        out.printf("%08x\n", shape);
-    }
-  }
-
   static void sort(String name) {
     System.out.printf("Sorting file: %s\n", name);
-    Map<Integer, Solver.Build> dataMap = readMultiDB(name);
-    writeDB(name, dataMap, false);
+    BuildTable data = readBuildTable(name);
+    writeDB(name, data);
   }
 
   static class Build {
@@ -126,11 +179,8 @@ public class ShapeFile {
     int shape1, shape2;
   }
 
-  static Map<Integer, Solver.Build> readMultiDB(String name) {
-    final int SIZE = 350000000;
-    Map<Integer, Solver.Build> result = new HashMap<>(SIZE);
-
-    /* Get list of files */
+  /* A DB file, or the files in a DB directory */
+  private static List<Path> listFiles(String name) {
     Path path = Paths.get(name);
     List<Path> files = new ArrayList<>();
     if (Files.isRegularFile(path)) {
@@ -145,6 +195,13 @@ public class ShapeFile {
       System.err.printf("Unknown file: %s\n", name);
     }
     System.out.println("number of files: " + files.size());
+    return files;
+  }
+
+  static Map<Integer, Solver.Build> readMultiDB(String name) {
+    final int SIZE = 350000000;
+    Map<Integer, Solver.Build> result = new HashMap<>(SIZE);
+    List<Path> files = listFiles(name);
 
     /* Read all files */
     for (Path file : files) {
@@ -168,72 +225,182 @@ public class ShapeFile {
     return result;
   }
 
+  /**
+   * Read a DB file or directory into a BuildTable.
+   * Files are split into chunks that are memory mapped and parsed in parallel, a byte at a time.
+   */
+  static BuildTable readBuildTable(String name) {
+    List<Path> files = listFiles(name);
+    List<long[]> chunks = new ArrayList<>(); // file number, start, end
+    long bytes = 0;
+    for (int i = 0; i < files.size(); ++i) {
+      try {
+        long size = Files.size(files.get(i));
+        for (long start = 0; start < size; start += CHUNK_SIZE)
+          chunks.add(new long[] { i, start, Math.min(size, start + CHUNK_SIZE) });
+        bytes += size;
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    BuildTable result = new BuildTable((int) Math.min(BuildTable.MAX_CAPACITY, bytes / LINE_SIZE + 1));
+
+    long before = System.nanoTime();
+    long records = chunks.parallelStream()
+        .mapToLong(chunk -> readChunk(files.get((int) chunk[0]), chunk[1], chunk[2], result)).sum();
+    double seconds = Math.max(1, System.nanoTime() - before) / 1e9;
+    System.out.printf("number of builds: %d\n", result.size());
+    System.out.printf("Read %,d records, %,d MB in %.2f s, %.0f MB/s, %,.0f records/s\n", records, bytes >> 20, seconds,
+        bytes / 1e6 / seconds, records / seconds);
+    return result;
+  }
+
+  /**
+   * Parse the lines that start in [start, end) of a file.
+   *
+   * @return number of lines read
+   */
+  private static long readChunk(Path file, long start, long end, BuildTable result) {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      // Map the byte before the chunk to find the first line, and enough bytes after it to finish the last line
+      long mapStart = Math.max(0, start - 1);
+      long mapEnd = Math.min(channel.size(), end + MAX_LINE_SIZE);
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, mapStart, mapEnd - mapStart);
+      int pos = (int) (start - mapStart);
+      int limit = (int) (end - mapStart);
+      int size = buffer.limit();
+      if (start > 0) {
+        while ((pos < size) && (buffer.get(pos - 1) != '\n'))
+          ++pos;
+      }
+      long count = 0;
+      Line line = new Line();
+      int next;
+      while (pos < limit) {
+        if (buffer.get(pos) == '\n') {
+          ++pos;
+          continue;
+        }
+        next = line.parse(buffer, pos, size);
+        if (next < 0)
+          throw new IOException(String.format("Bad line at byte %d of %s", mapStart + pos, file));
+        pos = next;
+        result.put(line.shape, line.cost, line.opName, line.shape1, line.shape2);
+        ++count;
+      }
+      return count;
+    } catch (IOException e) {
+      System.err.printf("Error reading file: %s\n", file);
+      e.printStackTrace();
+      return 0;
+    }
+  }
+
+  /**
+   * Fields of a DB line, reused from line to line.
+   */
+  static class Line {
+    // Cost digits written by ShapeWriter, a last line with no newline must have at least these
+    private static final int COST_DIGITS = 2;
+
+    int shape, cost, shape1, shape2;
+    Ops.Name opName;
+
+    /**
+     * Parse the line at pos, which ends at a newline or at size, the end of the file.
+     *
+     * @return position after the line, or -1 if the line is not valid
+     */
+    int parse(ByteBuffer buffer, int pos, int size) {
+      if (pos + 30 > size)
+        return -1;
+      if ((buffer.get(pos + 8) != ',') || (buffer.get(pos + 11) != ',') || (buffer.get(pos + 20) != ',')
+          || (buffer.get(pos + 29) != ','))
+        return -1;
+      long shape = hex8(buffer, pos);
+      long shape1 = hex8(buffer, pos + 12);
+      long shape2 = hex8(buffer, pos + 21);
+      opName = OP_NAMES_BY_CODE[((buffer.get(pos + 9) & 0xff) << 8) | (buffer.get(pos + 10) & 0xff)];
+      int cost = 0;
+      int bad = 0;
+      int digit;
+      int costStart = pos + 30;
+      for (pos = costStart; (pos < size) && (buffer.get(pos) != '\n') && (pos - costStart < 8); ++pos) {
+        digit = HEX_VALUES[buffer.get(pos) & 0xff];
+        bad |= digit;
+        cost = (cost << 4) | digit;
+      }
+      int digits = pos - costStart;
+      if ((pos < size) ? (buffer.get(pos) != '\n') || (digits == 0) : (digits < COST_DIGITS))
+        return -1;
+      if ((shape < 0) || (opName == null) || (shape1 < 0) || (shape2 < 0) || (bad < 0))
+        return -1;
+      this.shape = (int) shape;
+      this.cost = cost;
+      this.shape1 = (int) shape1;
+      this.shape2 = (int) shape2;
+      return (pos < size) ? pos + 1 : pos;
+    }
+  }
+
+  /**
+   * Parse 8 hex digits.
+   *
+   * @return the unsigned value, or -1 if a byte is not a hex digit
+   */
+  private static long hex8(ByteBuffer buffer, int pos) {
+    int value = 0;
+    int bad = 0;
+    int digit;
+    for (int i = 0; i < 8; ++i) {
+      digit = HEX_VALUES[buffer.get(pos + i) & 0xff];
+      bad |= digit;
+      value = (value << 4) | digit;
+    }
+    return (bad < 0) ? -1 : (value & 0xffffffffl);
+  }
+
+  /**
+   * Write builds to SDBXY files, see ShapeDB.
+   */
   static void writeMultiDB(String dirName, Map<Integer, Solver.Build> builds) {
-    final String PREFIX = "SDB";
     Path dirPath = Paths.get(dirName);
     if (!Files.isDirectory(dirPath)) {
       System.out.printf("filename is not a directory: %s\n", dirName);
     }
+    SolverEvents.DBWrite event = new SolverEvents.DBWrite();
+    event.begin();
+    int[] shapes = builds.keySet().stream().mapToInt(Integer::intValue).toArray();
+    int[][] buckets = ShapeWriter.partition(shapes, ShapeDB::index, NUM_BUCKETS);
     // for all index values 00..ff
-    for (int index = 0; index <= 0xff; ++index) {
-      String filename = dirPath.resolve(String.format("%s%02x", PREFIX, index)).toString();
-      System.out.printf("Writing file: %s\n", filename);
-      int init1, init2;
-      int shape;
-      Solver.Build build;
-      try (FileWriter file = new FileWriter(filename)) {
-        PrintWriter out = new PrintWriter(file);
-        init1 = (index & 0x0f) << 12;
-        init2 = (index & 0xf0) << 8;
-        for (int v2 = init2; v2 <= init2 + 0xfff; ++v2) {
-          for (int v1 = init1; v1 <= init1 + 0xfff; ++v1) {
-            shape = (v2 << 16) | v1;
-            // System.out.printf("%s %08x\n", filename, shape);
-            build = builds.get(shape);
-            if (build != null)
-              out.print(buildAsString(build));
-          }
-        }
+    for (int index = 0; index < NUM_BUCKETS; ++index) {
+      Path file = dirPath.resolve(ShapeDB.fileName(index));
+      System.out.printf("Writing file: %s\n", file);
+      try (ShapeWriter out = new ShapeWriter(file, false)) {
+        for (int shape : buckets[index])
+          out.writeBuild(builds.get(shape));
       } catch (Exception e) {
         e.printStackTrace();
       }
     }
-  }
-
-  private static String buildAsString(Solver.Build build) {
-    return String.format("%08x,%s,%08x,%08x,%02x\n", build.shape, build.opName.code, build.shape1, build.shape2,
-        build.cost);
+    commit(event, dirName, builds.size());
   }
 
   static void writeDB(String name, Map<Integer, Solver.Build> data, boolean append) {
-    final int BIG_DATA_SIZE = 10000000;
     System.out.printf("Writing file: %s\n", name);
-    try (FileWriter file = new FileWriter(name, append)) {
-      PrintWriter out = new PrintWriter(file);
-      if (data.size() < BIG_DATA_SIZE)
-        writeDBFast(out, data);
-      else
-        writeDBSlow(out, data);
+    SolverEvents.DBWrite event = new SolverEvents.DBWrite();
+    event.begin();
+    int[] shapes = data.keySet().stream().mapToInt(Integer::intValue).toArray();
+    try (ShapeWriter out = new ShapeWriter(Paths.get(name), append)) {
+      for (int[] bucket : ShapeWriter.partition(shapes, TOP_BYTE, NUM_BUCKETS)) {
+        for (int shape : bucket)
+          out.writeBuild(data.get(shape));
+      }
     } catch (Exception e) {
       System.err.printf("Error writing file: %s\n", name);
       e.printStackTrace();
     }
-  }
-
-  private static void writeDBFast(PrintWriter out, Map<Integer, Solver.Build> data) {
-    Integer[] shapes = data.keySet().toArray(Integer[]::new);
-    Arrays.parallelSort(shapes, (x, y) -> Integer.compareUnsigned(x, y));
-    for (Integer shape : shapes)
-      out.print(buildAsString(data.get(shape)));
-  }
-
-  private static void writeDBSlow(PrintWriter out, Map<Integer, Solver.Build> data) {
-    Solver.Build build;
-    for (long i = 0; i <= 0xffffffffl; ++i) {
-      build = data.get((int) i);
-      if (build != null)
-        out.print(buildAsString(build));
-    }
+    commit(event, name, data.size());
   }
 
 }
@@ -0,0 +1,130 @@
+package com.gamertools.shapeztools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * ShapeFilter
+ *
+ * Existence filter of the shapes in one ShapeDB shard, stored as SDBXY.flt next to the shard.
+ * - Every shape of shard XY has the form XxxxYxxx, so the other 24 bits select a bit of an exact 2 MB bitmap.
+ * - A shard with fewer than about 840K shapes uses a smaller Bloom filter instead, 10 to 20 bits and 7 probes per
+ * shape, for under 1% false positives.
+ * - mightContain() false means the shape is not in the shard. The file is memory mapped.
+ */
+class ShapeFilter {
+
+  private static final int MAGIC = 0x535a5346; // SZSF
+  private static final int HEADER_SIZE = 16;
+  private static final int BITMAP = 0;
+  private static final int BLOOM = 1;
+  private static final int BITMAP_BITS = 1 << 24;
+  private static final int BITS_PER_SHAPE = 10;
+  private static final int NUM_HASHES = 7;
+
+  private final LongBuffer words;
+  private final int type;
+  private final int mask;
+
+  private ShapeFilter(LongBuffer words, int type, int numBits) {
+    this.words = words;
+    this.type = type;
+    this.mask = numBits - 1;
+  }
+
+  boolean mightContain(int shape) {
+    if (type == BITMAP)
+      return isSet(bitmapIndex(shape));
+    long hash = hash(shape);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32) | 1;
+    for (int i = 0; i < NUM_HASHES; ++i) {
+      if (!isSet((h1 + i * h2) & mask))
+        return false;
+    }
+    return true;
+  }
+
+  private boolean isSet(int bit) {
+    return (words.get(bit >>> 6) & (1L << bit)) != 0;
+  }
+
+  /* Drop the top nibble of each layer, which is the same for every shape of a shard */
+  private static int bitmapIndex(int shape) {
+    return ((shape >>> 4) & 0xfff000) | (shape & 0xfff);
+  }
+
+  /* 64 bit mix of the shape, from MurmurHash3 fmix64 */
+  private static long hash(int shape) {
+    long h = shape & 0xffffffffL;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  /**
+   * Write the filter of a shard's shapes.
+   */
+  static void write(Path file, int[] shapes) throws IOException {
+    int numBits = Math.max(64, Integer.highestOneBit(Math.max(1, shapes.length * BITS_PER_SHAPE - 1)) << 1);
+    int type = BLOOM;
+    if (numBits >= BITMAP_BITS) {
+      type = BITMAP;
+      numBits = BITMAP_BITS;
+    }
+    long[] words = new long[numBits >>> 6];
+    int mask = numBits - 1;
+    for (int shape : shapes) {
+      if (type == BITMAP) {
+        set(words, bitmapIndex(shape));
+      } else {
+        long hash = hash(shape);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < NUM_HASHES; ++i)
+          set(words, (h1 + i * h2) & mask);
+      }
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + 8 * words.length);
+    buffer.putInt(MAGIC).putInt(type).putInt(numBits).putInt(shapes.length);
+    buffer.asLongBuffer().put(words);
+    buffer.rewind();
+    Path temp = Paths.get(file + ".tmp");
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (buffer.hasRemaining())
+        channel.write(buffer);
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void set(long[] words, int bit) {
+    words[bit >>> 6] |= 1L << bit;
+  }
+
+  static ShapeFilter read(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if ((buffer.capacity() < HEADER_SIZE) || (buffer.getInt() != MAGIC))
+        throw new IOException("Not a shape filter: " + file);
+      int type = buffer.getInt();
+      int numBits = buffer.getInt();
+      if (((type != BITMAP) && (type != BLOOM)) || (Integer.bitCount(numBits) != 1)
+          || (buffer.capacity() != HEADER_SIZE + numBits / 8))
+        throw new IOException("Bad shape filter: " + file);
+      return new ShapeFilter(buffer.position(HEADER_SIZE).slice().asLongBuffer(), type, numBits);
+    }
+  }
+
+}
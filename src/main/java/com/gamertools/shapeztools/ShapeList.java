@@ -0,0 +1,383 @@
+package com.gamertools.shapeztools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * ShapeList
+ *
+ * Compressed file of shapes in increasing unsigned order.
+ * - Shapes are stored in blocks of BLOCK_SIZE. A block starts with its first shape as 4 bytes, followed by the
+ * differences to the previous shape as unsigned varints, 7 bits per byte with the high bit set on all but the last.
+ * - An index of the first shape and file offset of each block follows the blocks, so a block can be read without
+ * reading the blocks before it, and blocks are decoded in parallel.
+ * - Layout: header (magic, version, block size, 0) | blocks | index (first shape, offset) per block | trailer
+ * (count, index offset, number of blocks, magic).
+ */
+class ShapeList {
+
+  static final int BLOCK_SIZE = 4096;
+
+  private static final int MAGIC = 0x535a534c; // SZSL
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int TRAILER_SIZE = 24;
+  private static final int INDEX_ENTRY_SIZE = 12;
+  private static final int BUFFER_SIZE = 1 << 20;
+  private static final int BLOCKS_PER_TASK = 256;
+
+  /**
+   * Streaming writer, shapes must be added in increasing unsigned order.
+   * The file is written to a temporary name and renamed when it is closed after finish(). If finish() was not called or
+   * add() failed, close() deletes the temporary file and leaves any existing file as it was.
+   */
+  static class Writer implements AutoCloseable {
+    private final Path path;
+    private final Path temp;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final IntList firstShapes = new IntList();
+    private final IntList offsets = new IntList(); // high and low words
+    private long position = 0;
+    private long count = 0;
+    private int prev;
+    private boolean failed = false;
+    private boolean finished = false;
+
+    Writer(String name) throws IOException {
+      path = Paths.get(name);
+      temp = Paths.get(name + ".tmp");
+      channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING);
+      buffer.putInt(MAGIC).putInt(VERSION).putInt(BLOCK_SIZE).putInt(0);
+    }
+
+    private void room(int bytes) throws IOException {
+      if (buffer.remaining() < bytes)
+        flush();
+    }
+
+    private void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining())
+        position += channel.write(buffer);
+      buffer.clear();
+    }
+
+    void add(int shape) throws IOException {
+      if (failed || finished)
+        throw new IllegalStateException("Shape list writer is " + (failed ? "failed" : "finished"));
+      try {
+        if ((count != 0) && (Integer.compareUnsigned(shape, prev) <= 0))
+          throw new IllegalArgumentException(String.format("Shape %08x is not after %08x", shape, prev));
+        room(5);
+        if (count % BLOCK_SIZE == 0) {
+          long offset = position + buffer.position();
+          firstShapes.add(shape);
+          offsets.add((int) (offset >>> 32), (int) offset);
+          buffer.putInt(shape);
+        } else {
+          int delta = shape - prev;
+          while ((delta & ~0x7f) != 0) {
+            buffer.put((byte) (delta | 0x80));
+            delta >>>= 7;
+          }
+          buffer.put((byte) delta);
+        }
+      } catch (RuntimeException | IOException e) {
+        failed = true;
+        throw e;
+      }
+      prev = shape;
+      ++count;
+    }
+
+    /**
+     * Write the index and trailer, the file is published when the writer is closed.
+     */
+    void finish() throws IOException {
+      if (failed || finished)
+        throw new IllegalStateException("Shape list writer is " + (failed ? "failed" : "finished"));
+      try {
+        long indexOffset = position + buffer.position();
+        for (int i = 0; i < firstShapes.size(); ++i) {
+          room(INDEX_ENTRY_SIZE);
+          buffer.putInt(firstShapes.get(i)).putInt(offsets.get(2 * i)).putInt(offsets.get(2 * i + 1));
+        }
+        room(TRAILER_SIZE);
+        buffer.putLong(count).putLong(indexOffset).putInt(firstShapes.size()).putInt(MAGIC);
+        flush();
+      } catch (RuntimeException | IOException e) {
+        failed = true;
+        throw e;
+      }
+      finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+      if (finished && !failed)
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      else
+        Files.deleteIfExists(temp);
+    }
+  }
+
+  /*
+   * The trailer and block index of a file.
+   */
+  private static class Index {
+    final long count;
+    final int[] firstShapes;
+    final long[] offsets; // numBlocks + 1 entries, the last is the index offset
+
+    Index(long count, int[] firstShapes, long[] offsets) {
+      this.count = count;
+      this.firstShapes = firstShapes;
+      this.offsets = offsets;
+    }
+
+    int numBlocks() {
+      return firstShapes.length;
+    }
+
+    int blockCount(int block) {
+      return (block < numBlocks() - 1) ? BLOCK_SIZE : (int) (count - (long) block * BLOCK_SIZE);
+    }
+  }
+
+  static boolean isShapeList(Path path) {
+    if (!Files.isRegularFile(path))
+      return false;
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer magic = ByteBuffer.allocate(4);
+      while (magic.hasRemaining() && (channel.read(magic) >= 0))
+        ;
+      return !magic.hasRemaining() && (magic.flip().getInt() == MAGIC);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  private static ByteBuffer readFully(FileChannel channel, long position, int size) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0)
+        throw new IOException("Shape list file is truncated");
+    }
+    return buffer.flip();
+  }
+
+  private static Index readIndex(FileChannel channel) throws IOException {
+    long size = channel.size();
+    if (size < HEADER_SIZE + TRAILER_SIZE)
+      throw new IOException("Shape list file is truncated");
+    ByteBuffer header = readFully(channel, 0, HEADER_SIZE);
+    if (header.getInt() != MAGIC)
+      throw new IOException("Not a shape list file");
+    int version = header.getInt();
+    if (version != VERSION)
+      throw new IOException("Unknown shape list version: " + version);
+    if (header.getInt() != BLOCK_SIZE)
+      throw new IOException("Unknown shape list block size");
+    ByteBuffer trailer = readFully(channel, size - TRAILER_SIZE, TRAILER_SIZE);
+    long count = trailer.getLong();
+    long indexOffset = trailer.getLong();
+    int numBlocks = trailer.getInt();
+    if ((trailer.getInt() != MAGIC) || (indexOffset + (long) numBlocks * INDEX_ENTRY_SIZE != size - TRAILER_SIZE))
+      throw new IOException("Shape list trailer does not match");
+    ByteBuffer entries = readFully(channel, indexOffset, numBlocks * INDEX_ENTRY_SIZE);
+    int[] firstShapes = new int[numBlocks];
+    long[] offsets = new long[numBlocks + 1];
+    for (int i = 0; i < numBlocks; ++i) {
+      firstShapes[i] = entries.getInt();
+      offsets[i] = entries.getLong();
+    }
+    offsets[numBlocks] = indexOffset;
+    return new Index(count, firstShapes, offsets);
+  }
+
+  /**
+   * Decode one block.
+   *
+   * @return the number of shapes put in result at pos
+   */
+  private static int decodeBlock(ByteBuffer data, int num, int[] result, int pos) {
+    int shape = data.getInt();
+    result[pos] = shape;
+    int delta, shift;
+    byte value;
+    for (int i = 1; i < num; ++i) {
+      delta = 0;
+      shift = 0;
+      do {
+        value = data.get();
+        delta |= (value & 0x7f) << shift;
+        shift += 7;
+      } while (value < 0);
+      shape += delta;
+      result[pos + i] = shape;
+    }
+    return num;
+  }
+
+  /**
+   * Decode blocks [from, to) of a file in parallel tasks, each task gets its shapes in order.
+   */
+  private static void decode(FileChannel channel, Index index, int from, int to, BlockVisitor task) {
+    int numTasks = (to - from + BLOCKS_PER_TASK - 1) / BLOCKS_PER_TASK;
+    IntStream.range(0, numTasks).parallel().forEach(t -> {
+      int first = from + t * BLOCKS_PER_TASK;
+      int last = Math.min(to, first + BLOCKS_PER_TASK);
+      try {
+        long start = index.offsets[first];
+        ByteBuffer data = readFully(channel, start, (int) (index.offsets[last] - start));
+        int[] shapes = new int[BLOCK_SIZE];
+        int num;
+        for (int block = first; block < last; ++block) {
+          data.position((int) (index.offsets[block] - start));
+          num = decodeBlock(data, index.blockCount(block), shapes, 0);
+          task.accept(block, shapes, num);
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+  }
+
+  private interface BlockVisitor {
+    void accept(int block, int[] shapes, int num);
+  }
+
+  /**
+   * Call action for every shape, from parallel threads and not in order.
+   */
+  static void forEach(String name, IntConsumer action) {
+    try (FileChannel channel = FileChannel.open(Paths.get(name), StandardOpenOption.READ)) {
+      Index index = readIndex(channel);
+      decode(channel, index, 0, index.numBlocks(), (block, shapes, num) -> {
+        for (int i = 0; i < num; ++i)
+          action.accept(shapes[i]);
+      });
+    } catch (Exception e) {
+      System.err.printf("Error reading file: %s\n", name);
+      e.printStackTrace();
+    }
+  }
+
+  static ShapeSet read(String name, int maxLayers) {
+    System.out.printf("Reading file: %s\n", name);
+    ShapeSet result = new ShapeSet(maxLayers);
+    forEach(name, result::add);
+    System.out.printf("number of shapes: %d\n", result.size());
+    return result;
+  }
+
+  /**
+   * @return all shapes in unsigned order
+   */
+  static int[] readArray(String name) {
+    return readRange(name, 0, -1);
+  }
+
+  /**
+   * Read the shapes from low to high, inclusive, in unsigned order. Only the blocks that can hold them are read.
+   */
+  static int[] readRange(String name, int low, int high) {
+    try (FileChannel channel = FileChannel.open(Paths.get(name), StandardOpenOption.READ)) {
+      Index index = readIndex(channel);
+      // First block that can hold low and the block after the last one that can hold high
+      int from = Math.max(0, upperBound(index.firstShapes, low) - 1);
+      int to = Math.max(from, upperBound(index.firstShapes, high));
+      long end = (to == index.numBlocks()) ? index.count : (long) to * BLOCK_SIZE;
+      long size = end - (long) from * BLOCK_SIZE;
+      if (size > Integer.MAX_VALUE - 8)
+        throw new IllegalArgumentException("Too many shapes for an array: " + size);
+      int[] result = new int[(int) size];
+      decode(channel, index, from, to, (block, shapes, num) -> {
+        System.arraycopy(shapes, 0, result, (block - from) * BLOCK_SIZE, num);
+      });
+      int first = lowerBound(result, low);
+      int last = upperBound(result, high);
+      return ((first == 0) && (last == result.length)) ? result : Arrays.copyOfRange(result, first, last);
+    } catch (Exception e) {
+      System.err.printf("Error reading file: %s\n", name);
+      e.printStackTrace();
+      return new int[0];
+    }
+  }
+
+  /* First position with a value unsigned greater than or equal to value */
+  private static int lowerBound(int[] values, int value) {
+    int low = 0, high = values.length, mid;
+    while (low < high) {
+      mid = (low + high) >>> 1;
+      if (Integer.compareUnsigned(values[mid], value) < 0)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+  /* First position with a value unsigned greater than value */
+  private static int upperBound(int[] values, int value) {
+    int low = 0, high = values.length, mid;
+    while (low < high) {
+      mid = (low + high) >>> 1;
+      if (Integer.compareUnsigned(values[mid], value) <= 0)
+        low = mid + 1;
+      else
+        high = mid;
+    }
+    return low;
+  }
+
+  static void write(String name, ShapeSet shapes) {
+    System.out.printf("Writing file: %s\n", name);
+    try (Writer out = new Writer(name)) {
+      PrimitiveIterator.OfInt iter = shapes.stream().iterator();
+      while (iter.hasNext())
+        out.add(iter.nextInt());
+      out.finish();
+    } catch (Exception e) {
+      System.err.printf("Error writing file: %s\n", name);
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Convert a text shape file to a shape list.
+   */
+  static void fromText(String textName, String name, int maxLayers) {
+    ShapeSet shapes = ShapeFile.read(textName, maxLayers);
+    if (shapes != null)
+      write(name, shapes);
+  }
+
+  /**
+   * Convert a shape list to a text shape file.
+   */
+  static void toText(String name, String textName) {
+    System.out.printf("Writing file: %s\n", textName);
+    try (ShapeWriter out = new ShapeWriter(Paths.get(textName), false)) {
+      for (int shape : readArray(name))
+        out.writeShape(shape);
+    } catch (Exception e) {
+      System.err.printf("Error writing file: %s\n", textName);
+      e.printStackTrace();
+    }
+  }
+
+}
@@ -0,0 +1,133 @@
+package com.gamertools.shapeztools;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * ShapeSet
+ *
+ * A dense bitmap of shapes keyed directly by the 32 bit shape value.
+ * - The bitmap is sized to the layer bound, one bit for each v2:v1 pair of (4 * maxLayers) bits.
+ * - 3 layers is 2^24 bits (2 MB) on the heap, 4 layers is 2^32 bits (512 MB) off the heap.
+ * - add() and contains() are safe to call from parallel streams.
+ * - Shapes are streamed in unsigned order.
+ */
+class ShapeSet {
+
+  private static final VarHandle HEAP_WORDS = MethodHandles.arrayElementVarHandle(long[].class);
+  private static final VarHandle DIRECT_WORDS = MethodHandles.byteBufferViewVarHandle(long[].class,
+      ByteOrder.nativeOrder());
+
+  private final int maxLayers;
+  private final int shift;
+  private final int numWords;
+  private final long[] words;
+  private final ByteBuffer buffer;
+  private final LongAdder size = new LongAdder();
+
+  ShapeSet(int maxLayers) {
+    if (maxLayers < 1 || maxLayers > Shape.NUM_LAYERS)
+      throw new IllegalArgumentException("Invalid number of layers: " + maxLayers);
+    this.maxLayers = maxLayers;
+    this.shift = 4 * maxLayers;
+    this.numWords = (int) Math.max(1, (1l << (2 * shift)) >>> 6);
+    if (maxLayers < Shape.NUM_LAYERS) {
+      this.words = new long[numWords];
+      this.buffer = null;
+    } else {
+      this.words = null;
+      this.buffer = ByteBuffer.allocateDirect(8 * numWords).order(ByteOrder.nativeOrder());
+    }
+  }
+
+  int maxLayers() {
+    return maxLayers;
+  }
+
+  /**
+   * Bit index of a shape, or -1 if the shape has more than maxLayers layers.
+   */
+  private long index(int shape) {
+    int v1 = Shape.v1(shape);
+    int v2 = Shape.v2(shape);
+    if (((v1 | v2) >>> shift) != 0)
+      return -1;
+    return ((long) v2 << shift) | v1;
+  }
+
+  private int shape(long index) {
+    int v1 = (int) index & ((1 << shift) - 1);
+    int v2 = (int) (index >>> shift);
+    return (v2 << 16) | v1;
+  }
+
+  private long word(int num) {
+    if (words != null)
+      return (long) HEAP_WORDS.getAcquire(words, num);
+    return (long) DIRECT_WORDS.getAcquire(buffer, num << 3);
+  }
+
+  private long setBits(int num, long mask) {
+    if (words != null)
+      return (long) HEAP_WORDS.getAndBitwiseOr(words, num, mask);
+    return (long) DIRECT_WORDS.getAndBitwiseOr(buffer, num << 3, mask);
+  }
+
+  /**
+   * Add a shape to the set.
+   *
+   * @param shape
+   * @return true if the shape was not already in the set
+   */
+  boolean add(int shape) {
+    long index = index(shape);
+    if (index < 0)
+      throw new IllegalArgumentException(String.format("Shape %08x has more than %d layers", shape, maxLayers));
+    int num = (int) (index >>> 6);
+    long mask = 1l << index;
+    if ((word(num) & mask) != 0)
+      return false;
+    if ((setBits(num, mask) & mask) != 0)
+      return false;
+    size.increment();
+    return true;
+  }
+
+  boolean contains(int shape) {
+    long index = index(shape);
+    if (index < 0)
+      return false;
+    return (word((int) (index >>> 6)) & (1l << index)) != 0;
+  }
+
+  long size() {
+    return size.sum();
+  }
+
+  IntStream stream() {
+    return IntStream.range(0, numWords).filter(num -> word(num) != 0).flatMap(num -> IntStream.of(shapes(num)));
+  }
+
+  /**
+   * Shapes in one word of the bitmap.
+   */
+  private int[] shapes(int num) {
+    long bits = word(num);
+    long base = (long) num << 6;
+    int[] result = new int[Long.bitCount(bits)];
+    for (int i = 0; bits != 0; ++i) {
+      result[i] = shape(base + Long.numberOfTrailingZeros(bits));
+      bits &= bits - 1;
+    }
+    return result;
+  }
+
+  int[] toArray() {
+    return stream().toArray();
+  }
+
+}
@@ -0,0 +1,149 @@
+package com.gamertools.shapeztools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * ShapeWriter
+ *
+ * Buffered writer of shape and DB text files, with a sort for large sets of shapes.
+ * - Lines are formatted into a large direct buffer, a hex digit at a time, and written to a file channel.
+ * - partition() splits shapes into buckets in one pass and radix sorts the buckets in parallel, so the time
+ * depends on the number of shapes and not on the 2^32 key space.
+ */
+class ShapeWriter implements AutoCloseable {
+
+  private static final int BUFFER_SIZE = 1 << 22;
+  private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+
+  private final FileChannel channel;
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+  ShapeWriter(Path file, boolean append) throws IOException {
+    channel = append
+        ? FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+        : FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING);
+  }
+
+  private void room(int bytes) throws IOException {
+    if (buffer.remaining() < bytes)
+      flush();
+  }
+
+  private void flush() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining())
+      channel.write(buffer);
+    buffer.clear();
+  }
+
+  /* Put the low digits hex digits of value, more if needed */
+  private void putHex(int value, int digits) {
+    while ((digits < 8) && ((value >>> (4 * digits)) != 0))
+      ++digits;
+    for (int i = digits - 1; i >= 0; --i)
+      buffer.put(HEX_DIGITS[(value >>> (4 * i)) & 0xf]);
+  }
+
+  /**
+   * Write a line of a shape file, "%08x\n".
+   */
+  void writeShape(int shape) throws IOException {
+    room(9);
+    putHex(shape, 8);
+    buffer.put((byte) '\n');
+  }
+
+  /**
+   * Write a line of a DB file, "%08x,%s,%08x,%08x,%02x\n".
+   */
+  void writeBuild(int shape, int cost, Ops.Name opName, int shape1, int shape2) throws IOException {
+    room(64);
+    putHex(shape, 8);
+    buffer.put((byte) ',');
+    for (int i = 0; i < opName.code.length(); ++i)
+      buffer.put((byte) opName.code.charAt(i));
+    buffer.put((byte) ',');
+    putHex(shape1, 8);
+    buffer.put((byte) ',');
+    putHex(shape2, 8);
+    buffer.put((byte) ',');
+    putHex(cost, 2);
+    buffer.put((byte) '\n');
+  }
+
+  void writeBuild(Solver.Build build) throws IOException {
+    writeBuild(build.shape, build.cost, build.opName, build.shape1, build.shape2);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Split shapes into buckets, each sorted in unsigned order.
+   *
+   * @param bucketOf bucket number of a shape, 0 to numBuckets - 1
+   * @return the shapes of each bucket
+   */
+  static int[][] partition(int[] shapes, IntUnaryOperator bucketOf, int numBuckets) {
+    int[] counts = new int[numBuckets];
+    for (int shape : shapes)
+      ++counts[bucketOf.applyAsInt(shape)];
+    int[][] buckets = new int[numBuckets][];
+    for (int i = 0; i < numBuckets; ++i)
+      buckets[i] = new int[counts[i]];
+    int[] next = new int[numBuckets];
+    int bucket;
+    for (int shape : shapes) {
+      bucket = bucketOf.applyAsInt(shape);
+      buckets[bucket][next[bucket]++] = shape;
+    }
+    IntStream.range(0, numBuckets).parallel().forEach(i -> radixSort(buckets[i]));
+    return buckets;
+  }
+
+  /**
+   * Sort in unsigned order, a byte at a time from the low byte. Bytes that are the same in every value are skipped.
+   */
+  static void radixSort(int[] values) {
+    int[] from = values;
+    int[] to = new int[values.length];
+    int[] temp;
+    int[] counts = new int[256];
+    int shift, total, count;
+    for (shift = 0; shift < 32; shift += 8) {
+      Arrays.fill(counts, 0);
+      for (int value : from)
+        ++counts[(value >>> shift) & 0xff];
+      if ((values.length == 0) || (counts[(from[0] >>> shift) & 0xff] == values.length))
+        continue;
+      total = 0;
+      for (int i = 0; i < 256; ++i) {
+        count = counts[i];
+        counts[i] = total;
+        total += count;
+      }
+      for (int value : from)
+        to[counts[(value >>> shift) & 0xff]++] = value;
+      temp = from;
+      from = to;
+      to = temp;
+    }
+    if (from != values)
+      System.arraycopy(from, 0, values, 0, values.length);
+  }
+
+}
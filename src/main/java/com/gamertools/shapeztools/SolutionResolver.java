@@ -0,0 +1,152 @@
+package com.gamertools.shapeztools;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * SolutionResolver
+ *
+ * Resolves the full build of many shapes from a ShapeDB.
+ * - A solution is a DAG of nodes, a sub-build that is used more than once is one shared node.
+ * - Resolved nodes are kept across calls, so a sub-build is looked up once per resolver.
+ * - Lookups are done a level at a time. The shapes of a large level are grouped by shard so each shard is used once
+ * per level, and shards are searched in parallel.
+ * - Not thread safe, use one resolver per thread.
+ */
+class SolutionResolver {
+
+  private static final int NUM_SHARDS = 256;
+  // Smaller levels are looked up in order, grouping them costs more than it saves
+  private static final int MIN_GROUP_SIZE = 1024;
+
+  /**
+   * A shape and how it is built. inputs is empty for a primitive shape, and build is null if the shape is not in the
+   * DB.
+   */
+  static class Node {
+    final int shape;
+    final ShapeDB.Build build;
+    final Node[] inputs;
+
+    Node(int shape, ShapeDB.Build build, Node[] inputs) {
+      this.shape = shape;
+      this.build = build;
+      this.inputs = inputs;
+    }
+
+    /**
+     * @return true if every shape of the solution has a build
+     */
+    boolean isComplete() {
+      if (build == null)
+        return false;
+      for (Node input : inputs) {
+        if (!input.isComplete())
+          return false;
+      }
+      return true;
+    }
+
+    /**
+     * @return the solution as an indented tree, one build per line
+     */
+    String tree() {
+      StringBuilder result = new StringBuilder();
+      tree(result, 0);
+      return result.toString();
+    }
+
+    private void tree(StringBuilder result, int indent) {
+      result.append(String.format("%s%08x <- %s\n", "  ".repeat(indent), shape, build));
+      for (Node input : inputs)
+        input.tree(result, indent + 1);
+    }
+  }
+
+  private static final Node[] NO_INPUTS = {};
+
+  private final ShapeDB db;
+  private final Map<Integer, Node> nodes = new HashMap<>();
+  private long lookups = 0;
+
+  SolutionResolver(ShapeDB db) {
+    this.db = db;
+  }
+
+  Node resolve(int shape) {
+    return resolve(new int[] { shape }).get(shape);
+  }
+
+  /**
+   * Resolve the solutions of the target shapes.
+   *
+   * @return node of each target
+   */
+  Map<Integer, Node> resolve(int[] targets) {
+    Map<Integer, ShapeDB.Build> builds = new ConcurrentHashMap<>();
+    int[] level = IntStream.of(targets).distinct().filter(shape -> !nodes.containsKey(shape)).toArray();
+    while (level.length != 0) {
+      lookups += level.length;
+      if (level.length < MIN_GROUP_SIZE)
+        lookup(level, builds);
+      else
+        Arrays.stream(ShapeWriter.partition(level, ShapeDB::index, NUM_SHARDS)).parallel()
+            .forEach(shapes -> lookup(shapes, builds));
+      level = Arrays.stream(level).mapToObj(builds::get).filter(build -> build != null)
+          .flatMapToInt(build -> inputs(build)).distinct()
+          .filter(shape -> !nodes.containsKey(shape) && !builds.containsKey(shape)).toArray();
+    }
+
+    Map<Integer, Node> result = new HashMap<>();
+    for (int shape : targets)
+      result.put(shape, node(shape, builds));
+    return result;
+  }
+
+  private void lookup(int[] shapes, Map<Integer, ShapeDB.Build> builds) {
+    ShapeDB.Build build;
+    for (int shape : shapes) {
+      build = db.getBuild(shape);
+      if (build != null)
+        builds.put(shape, build);
+    }
+  }
+
+  private static IntStream inputs(ShapeDB.Build build) {
+    if ((build.opName == Ops.Name.NOP) || (build.shape1 == 0))
+      return IntStream.empty();
+    return (build.shape2 == 0) ? IntStream.of(build.shape1) : IntStream.of(build.shape1, build.shape2);
+  }
+
+  /* Make the node of a shape from the builds looked up, its inputs first */
+  private Node node(int shape, Map<Integer, ShapeDB.Build> builds) {
+    Node node = nodes.get(shape);
+    if (node != null)
+      return node;
+    ShapeDB.Build build = builds.get(shape);
+    Node[] inputs = NO_INPUTS;
+    if (build != null)
+      inputs = inputs(build).mapToObj(input -> node(input, builds)).toArray(Node[]::new);
+    node = new Node(shape, build, inputs);
+    nodes.put(shape, node);
+    return node;
+  }
+
+  /**
+   * @return number of shapes looked up in the DB
+   */
+  long lookups() {
+    return lookups;
+  }
+
+  /**
+   * @return number of shapes resolved
+   */
+  int size() {
+    return nodes.size();
+  }
+
+}
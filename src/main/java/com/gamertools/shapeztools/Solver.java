@@ -2,13 +2,17 @@ package com.gamertools.shapeztools;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+import java.util.function.IntFunction;
 import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
 import java.util.stream.IntStream;
 
 /**
@@ -19,16 +23,35 @@ public class Solver {
   private static final int MAX_COST = 1000;
   private static final int MAX_LAYERS = 3;
   private static final int BATCH_SIZE = 1000000;
+  private static final int MAX_BUILDS = 400000000;
+  private static final boolean CANONICAL = false;
+  private static final long CHECKPOINT_MILLIS = 15 * 60 * 1000;
+  private static final boolean USE_OP_TABLES = true;
+  private static final String OP_TABLE_DIR = null;
 
   private static final int PRIM_COST = 1;
+  private static final int TILE_SIZE = 2048;
   private static boolean exit = false;
 
   final String RESULTS = "BigData/shapes.db";
+  static final String CHECKPOINT = "BigData/solver.ckpt";
+  static final String BUILD_LOG = "BigData/builds.log"; // used by Main.runSolver(), null for no log
+  static final String METRICS_LOG = "BigData/metrics.jsonl"; // null for no metrics
 
   private static final Ops.Name[] ONE_OPS = { Ops.Name.ROTATE_RIGHT, Ops.Name.ROTATE_180, Ops.Name.ROTATE_LEFT,
       Ops.Name.CUT_RIGHT, Ops.Name.CUT_LEFT, Ops.Name.PINPUSH, Ops.Name.CRYSTAL };
   private static final Ops.Name[] TWO_OPS = { Ops.Name.SWAP_RIGHT, Ops.Name.SWAP_LEFT, Ops.Name.STACK };
 
+  // Mode of a canonical run in checkpoints and build logs, 1 was a run keyed over all 8 transforms
+  static final int CANONICAL_MODE = 2;
+
+  /*
+   * Canonical mode one ops. On the other members of a class these give the same classes: a rotate left or half turn
+   * gives the class of a rotate right, and a cut on a half turn or mirror image gives the class of one of the cuts.
+   */
+  private static final Ops.Name[] KEY_ONE_OPS = { Ops.Name.ROTATE_RIGHT, Ops.Name.CUT_RIGHT, Ops.Name.CUT_LEFT,
+      Ops.Name.PINPUSH, Ops.Name.CRYSTAL };
+
   static class Build {
     int cost;
     Ops.Name opName;
@@ -46,6 +69,23 @@ public class Solver {
     }
   }
 
+  /**
+   * Half shapes that are done, with their costs, in the order they were done.
+   */
+  static class HalfIndex {
+    final IntList shapes = new IntList();
+    final IntList costs = new IntList();
+
+    void add(int shape, int cost) {
+      shapes.add(shape);
+      costs.add(cost);
+    }
+
+    int size() {
+      return shapes.size();
+    }
+  }
+
   static String buildAsString(Build build) {
     String result;
     String opCode = build.opName.code;
@@ -66,11 +106,29 @@ public class Solver {
   // }
   // }
 
-  private Set<Integer> allShapes = new HashSet<>();
-  private List<Set<Integer>> newShapes = new ArrayList<>(MAX_COST);
-
-  private Map<Integer, Build> allBuilds = Collections.synchronizedMap(new HashMap<>());
-  private List<Build> oldBuilds = Collections.synchronizedList(new ArrayList<>());
+  private final int layers;
+  private final boolean canonical;
+  private final OpTable[] opTables;
+  private ShapeSet allShapes;
+  private CostQueue newShapes = new CostQueue(MAX_COST);
+
+  private BuildTable allBuilds;
+  private LongAdder numDups = new LongAdder();
+  private LongAdder numPairs = new LongAdder();
+  private LongAdder numPruned = new LongAdder();
+  private HalfIndex leftHalves = new HalfIndex();
+  private HalfIndex rightHalves = new HalfIndex();
+
+  private int startCost = PRIM_COST;
+  private long checkpointTime = System.currentTimeMillis();
+  private ExecutorService checkpointer;
+  private Future<?> checkpointDone;
+  private BuildLog buildLog;
+  // Off unless set, so test and benchmark runs do not replace the files of a real run
+  private String buildLogName = null;
+  private String checkpointName = null;
+  private int maxIters = MAX_ITERS;
+  private final List<SolverListener> listeners = new ArrayList<>();
   // private List<Dups> dups = Collections.synchronizedList(new ArrayList<>());
 
   private static Map<Ops.Name, Integer> opCosts = new HashMap<>();
@@ -94,34 +152,54 @@ public class Solver {
   }
 
   Solver() {
-    for (int i = 0; i < MAX_COST; ++i) {
-      newShapes.add(Collections.synchronizedSet(new HashSet<Integer>()));
-    }
+    this(MAX_LAYERS, CANONICAL);
+  }
+
+  Solver(int layers) {
+    this(layers, false);
+  }
+
+  /**
+   * @param layers    maximum number of layers
+   * @param canonical only store and expand key shapes (see Ops.cutKeyValue), each build records which member of the
+   *                  key's class it makes. The classes are expanded to all of their shapes when the results are saved.
+   */
+  Solver(int layers, boolean canonical) {
+    this.layers = layers;
+    this.canonical = canonical;
+    if (USE_OP_TABLES && (layers <= OpTable.MAX_LAYERS))
+      opTables = OpTable.getAll(layers, OP_TABLE_DIR);
+    else
+      opTables = new OpTable[Ops.Name.values().length];
+    allShapes = new ShapeSet(layers);
+    allBuilds = new BuildTable((int) Math.min(1l << (8 * layers), MAX_BUILDS));
   }
 
-  private IntStream shapeStream(Set<Integer> shapes) {
-    return shapes.stream().mapToInt(Integer::intValue);
+  /**
+   * Set the build log and checkpoint files, null for none. Both are off by default.
+   */
+  void setFiles(String buildLogName, String checkpointName) {
+    this.buildLogName = buildLogName;
+    this.checkpointName = checkpointName;
+  }
+
+  /**
+   * Stop after the shapes of this cost are done.
+   */
+  void setMaxCost(int maxCost) {
+    this.maxIters = maxCost;
+  }
+
+  void addListener(SolverListener listener) {
+    listeners.add(listener);
   }
 
   private IntStream shapeStream(int[] shapes) {
     return Arrays.stream(shapes);
   }
 
-  void takeValues(Set<Integer> dstSet, Set<Integer> srcSet, int maxValues) {
-    int numValues = maxValues - dstSet.size();
-    if (numValues <= 0)
-      return;
-    if (srcSet.size() <= numValues) {
-      dstSet.addAll(srcSet);
-      srcSet.clear();
-      return;
-    }
-    for (Integer v : srcSet) {
-      if (numValues-- == 0)
-        break;
-      dstSet.add(v);
-    }
-    srcSet.removeAll(dstSet);
+  private IntStream shapeStream(ShapeSet shapes) {
+    return shapes.stream();
   }
 
   /**
@@ -130,13 +208,33 @@ public class Solver {
   private boolean maxLayers(int shape) {
     if (shape == 0)
       return false;
-    return (Shape.v1(shape) | Shape.v2(shape)) < (1 << (4 * MAX_LAYERS));
+    return (Shape.v1(shape) | Shape.v2(shape)) < (1 << (4 * layers));
   }
 
   private boolean oneLayerNoCrystal(int shape) {
     return Shape.isOneLayer(shape) && !Shape.hasCrystal(shape);
   }
 
+  /* Occupied quads of the first layer */
+  private static int bottomQuads(int shape) {
+    return (Shape.v1(shape) | Shape.v2(shape)) & 0xf;
+  }
+
+  /*
+   * Occupied quads of the last layer that fits, a 1-layer stack with any of these quads is too tall. At
+   * Shape.NUM_LAYERS the stack drops the layers that do not fit instead, and a top with pins can still make a new shape,
+   * so nothing is pruned.
+   */
+  private int topQuads(int shape) {
+    if (layers >= Shape.NUM_LAYERS)
+      return 0;
+    return ((Shape.v1(shape) | Shape.v2(shape)) >>> (4 * (layers - 1))) & 0xf;
+  }
+
+  private static int noQuads(int shape) {
+    return 0;
+  }
+
   private void debugBuild(String name, Build build) {
     if ((debugShapes == null) || (build == null))
       return;
@@ -144,27 +242,18 @@ public class Solver {
       System.out.printf("%s: %s\n", name, buildAsString(build));
   }
 
+  /**
+   * Perform an op and store the build if the result is new or cheaper.
+   *
+   * @return the result shape if its build was stored, otherwise 0
+   */
   private int doOp(Ops.Name opName, int shape) {
-    int result = Ops.invoke(opName, shape);
+    int result = invoke(opName, shape);
     // debugBuild("OP", new Build(0, opName, result, shape));
     if (exit || (result == shape) || !maxLayers(result))
       return 0;
-    synchronized (allBuilds) {
-      Build oldBuild = allBuilds.get(result), newBuild = null;
-      int cost = cost(opName, shape);
-      if (oldBuild == null) {
-        newBuild = new Build(cost, opName, result, shape);
-        allBuilds.put(result, newBuild);
-        // debugBuild("NEW", newBuild);
-      } else if (cost < oldBuild.cost) {
-        oldBuilds.add(oldBuild);
-        newBuild = new Build(cost, opName, result, shape);
-        allBuilds.put(result, newBuild);
-        // debugBuild("DUP_OLD", oldBuild);
-        // debugBuild("DUP_NEW", newBuild);
-      }
-    }
-    return result;
+    int cost = cost(opName, shape);
+    return store(result, cost, opName, shape, 0, 0);
   }
 
   private int doOp(Ops.Name opName, int shape1, int shape2) {
@@ -172,158 +261,571 @@ public class Solver {
     // debugBuild("OP", new Build(0, opName, result, shape1, shape2));
     if (exit || (result == shape1) || (result == shape2) || !maxLayers(result))
       return 0;
-    synchronized (allBuilds) {
-      Build oldBuild = allBuilds.get(result), newBuild = null;
-      int cost = cost(opName, shape1, shape2);
-      if (oldBuild == null) {
-        newBuild = new Build(cost, opName, result, shape1, shape2);
-        allBuilds.put(result, newBuild);
-        // debugBuild("NEW", newBuild);
-      } else if (cost < oldBuild.cost) {
-        oldBuilds.add(oldBuild);
-        newBuild = new Build(cost, opName, result, shape1, shape2);
-        allBuilds.put(result, newBuild);
-        // debugBuild("DUP_OLD", oldBuild);
-        // debugBuild("DUP_NEW", newBuild);
-      }
-    }
+    int cost = cost(opName, shape1, shape2);
+    return store(result, cost, opName, shape1, shape2, 0);
+  }
+
+  /**
+   * Perform an op in canonical mode and store the build under the result's key if it is new or cheaper.
+   *
+   * @param cost cost of the input shape
+   * @return the result's key if its build was stored, otherwise 0
+   */
+  private int doKeyOp(Ops.Name opName, int shape, int cost) {
+    int result = invoke(opName, shape);
+    if (exit || (result == shape) || !maxLayers(result))
+      return 0;
+    int key = Ops.cutKeyValue(result);
+    return store(key, opCosts.get(opName) + cost, opName, shape, 0, Ops.keyTransform(result, key));
+  }
+
+  private int doKeyOp(Ops.Name opName, int shape1, int cost1, int shape2, int cost2) {
+    int result = Ops.invoke(opName, shape1, shape2);
+    if (exit || (result == shape1) || (result == shape2) || !maxLayers(result))
+      return 0;
+    int key = Ops.cutKeyValue(result);
+    return store(key, opCosts.get(opName) + cost1 + cost2, opName, shape1, shape2, Ops.keyTransform(result, key));
+  }
+
+  /**
+   * Perform a one input op, with a table lookup if it has one.
+   */
+  private int invoke(Ops.Name opName, int shape) {
+    OpTable table = opTables[opName.ordinal()];
+    return (table == null) ? Ops.invoke(opName, shape) : table.applyAsInt(shape);
+  }
+
+  private int store(int result, int cost, Ops.Name opName, int shape1, int shape2, int orient) {
+    int oldCost = allBuilds.putIfCheaper(result, cost, opName, shape1, shape2, orient);
+    if ((oldCost != BuildTable.ABSENT) && (cost >= oldCost))
+      return 0;
+    if (buildLog != null)
+      buildLog.add(result, cost, opName, shape1, shape2, orient);
+    if (oldCost == BuildTable.ABSENT)
+      return result;
+    numDups.increment();
+    // debugBuild("DUP_NEW", allBuilds.get(result));
     return result;
   }
 
   private int cost(Ops.Name opName, int shape) {
-    return opCosts.get(opName) + allBuilds.get(shape).cost;
+    return opCosts.get(opName) + allBuilds.cost(shape);
   }
 
   private int cost(Ops.Name opName, int shape1, int shape2) {
-    return opCosts.get(opName) + allBuilds.get(shape1).cost + allBuilds.get(shape2).cost;
+    return opCosts.get(opName) + allBuilds.cost(shape1) + allBuilds.cost(shape2);
+  }
+
+  /**
+   * The shape made by a key's build in canonical mode.
+   */
+  private int member(int key) {
+    return Ops.transform(key, allBuilds.orient(key));
+  }
+
+  /**
+   * The shapes of a key's class that pass a filter, with their costs, as (shape, cost) pairs. Every shape of the class
+   * costs the same as the key.
+   */
+  private int[] orientations(int key, IntPredicate filter) {
+    int shape = member(key);
+    int cost = allBuilds.cost(key);
+    IntList result = new IntList(8);
+    int value;
+    next: for (int num : Ops.CUT_TRANSFORMS) {
+      value = Ops.transform(shape, num);
+      if (!filter.test(value))
+        continue;
+      for (int i = 0; i < result.size(); i += 2) {
+        if (result.get(i) == value)
+          continue next;
+      }
+      result.add(value, cost);
+    }
+    return result.toArray();
   }
 
   private String todoString() {
     StringBuilder sb = new StringBuilder();
     int size;
-    for (int i = 0; i < newShapes.size(); ++i) {
-      size = newShapes.get(i).size();
+    for (int i = 0; i < newShapes.maxCost(); ++i) {
+      size = newShapes.size(i);
       if (size > 0)
         sb.append(String.format("%4d: %,10d\n", i, size));
     }
     return sb.toString();
   }
 
+  /**
+   * Make a solver that continues from the latest valid checkpoint.
+   *
+   * @return the solver, or null if there is no valid checkpoint
+   */
+  static Solver resume(String name) {
+    Checkpoint checkpoint = Checkpoint.readLatest(name);
+    if (checkpoint == null)
+      return null;
+    Solver solver = new Solver(checkpoint.layers, checkpoint.canonical);
+    solver.allBuilds.restore(checkpoint.builds);
+    IntStream.of(checkpoint.doneShapes).forEach(solver.allShapes::add);
+    solver.addHalves(checkpoint.doneShapes);
+    for (int cost = 0; cost < checkpoint.queue.length; ++cost) {
+      for (int shape : checkpoint.queue[cost])
+        solver.newShapes.add(shape, cost);
+    }
+    solver.startCost = checkpoint.cost;
+    System.out.printf("Resume at cost %d with %,d builds\n", checkpoint.cost, solver.allBuilds.size());
+    return solver;
+  }
+
+  /**
+   * Take a checkpoint between batches if the last one is old enough and done. The copy is made here, the file is
+   * written by a background thread while the next batch runs.
+   */
+  private void checkpoint(int cost) {
+    long now = System.currentTimeMillis();
+    if ((checkpointName == null) || (now - checkpointTime < CHECKPOINT_MILLIS)
+        || ((checkpointDone != null) && !checkpointDone.isDone()))
+      return;
+    checkpointTime = now;
+    int[][] queue = IntStream.range(0, newShapes.maxCost()).mapToObj(newShapes::remaining).toArray(int[][]::new);
+    Checkpoint checkpoint = new Checkpoint(layers, canonical, cost, allBuilds.snapshot(), allShapes.toArray(), queue);
+    long copyTime = System.currentTimeMillis() - now;
+    if (checkpointer == null) {
+      checkpointer = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "checkpoint");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    checkpointDone = checkpointer.submit(() -> {
+      try {
+        SolverEvents.Checkpoint event = new SolverEvents.Checkpoint();
+        event.begin();
+        long before = System.currentTimeMillis();
+        long size = checkpoint.write(checkpointName);
+        long writeTime = System.currentTimeMillis() - before;
+        if (event.shouldCommit()) {
+          event.cost = cost;
+          event.bytes = size;
+          event.commit();
+        }
+        System.out.printf("CHECKPOINT cost %d, %,d bytes, copy %d ms, write %d ms\n", cost, size, copyTime,
+            writeTime);
+      } catch (Exception e) {
+        System.err.printf("Error writing checkpoint: %s\n", checkpointName);
+        e.printStackTrace();
+      }
+    });
+  }
+
+  private void waitForCheckpoint() {
+    try {
+      if (checkpointDone != null)
+        checkpointDone.get();
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
   void run() {
     // int[] shapes = Arrays.stream(Shape.FLAT_4).toArray();
     // int[] shapes = Arrays.asList(Shape.FLAT_4, Shape.PIN_4).stream().flatMapToInt(Arrays::stream).toArray();
     int[] shapes = Arrays.stream(new int[][] { Shape.FLAT_4, Shape.PIN_4 }).flatMapToInt(Arrays::stream).toArray();
 
-    System.out.println("Max iters: " + MAX_ITERS);
-    System.out.println("Max layers: " + MAX_LAYERS);
+    System.out.println("Max iters: " + maxIters);
+    System.out.println("Max layers: " + layers);
     System.out.println("Batch size: " + BATCH_SIZE);
     System.out.println("Input shapes");
     Tools.displayShapes(shapes);
 
-    Arrays.stream(shapes).forEach(shape -> newShapes.get(PRIM_COST).add(shape));
-    Arrays.stream(shapes).forEach(shape -> allBuilds.put(shape, new Build(PRIM_COST, Ops.Name.NOP, shape)));
+    if (canonical)
+      shapes = Arrays.stream(shapes).map(Ops::cutKeyValue).distinct().toArray();
+    System.out.println("Canonical: " + canonical);
+    openLog();
+    if (allBuilds.size() == 0) {
+      Arrays.stream(shapes).forEach(shape -> newShapes.add(shape, PRIM_COST));
+      Arrays.stream(shapes).forEach(shape -> store(shape, PRIM_COST, Ops.Name.NOP, 0, 0, 0));
+    }
 
-    Set<Integer> newShapes, inputShapes = new HashSet<>();
-    for (int cost = PRIM_COST; cost < MAX_COST; ++cost) {
-      if (cost > MAX_ITERS)
+    int[] inputShapes;
+    for (int cost = startCost; cost < MAX_COST; ++cost) {
+      if (cost > maxIters)
         break;
-      newShapes = this.newShapes.get(cost);
-      if (newShapes.size() > 0) {
+      boolean started = !newShapes.isEmpty(cost);
+      SolverEvents.CostLevel levelEvent = new SolverEvents.CostLevel();
+      levelEvent.begin();
+      if (started) {
         System.out.println("TODO");
         System.out.println(todoString());
         System.out.printf("COST    %,20d\n", cost);
+        for (SolverListener listener : listeners)
+          listener.levelStarted(cost);
       }
-      while (newShapes.size() > 0) {
-        takeValues(inputShapes, newShapes, BATCH_SIZE);
-        System.out.printf("SIZE    %,20d\n", inputShapes.size());
+      final int level = cost;
+      while (!newShapes.isEmpty(cost)) {
+        // Skip shapes that were queued again at a lower cost
+        inputShapes = newShapes.take(cost, BATCH_SIZE, shape -> allBuilds.cost(shape) == level);
+        if (inputShapes.length == 0)
+          continue;
+        System.out.printf("SIZE    %,20d\n", inputShapes.length);
         System.out.printf("TOTAL   %,20d\n", allShapes.size());
         System.out.printf("BUILDS  %,20d\n", allBuilds.size());
-        makeShapes(inputShapes);
-        allShapes.addAll(inputShapes);
-        inputShapes.clear();
+        SolverEvents.Batch batchEvent = new SolverEvents.Batch();
+        batchEvent.begin();
+        SolverListener.Batch batch = makeShapes(inputShapes);
+        long before = System.nanoTime();
+        Arrays.stream(inputShapes).forEach(allShapes::add);
+        batch.frontierNanos += System.nanoTime() - before;
+        batch.cost = cost;
+        batch.heapUsed = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+        for (SolverListener listener : listeners)
+          listener.batchDone(batch);
+        if (batchEvent.shouldCommit()) {
+          batchEvent.cost = cost;
+          batchEvent.inputs = batch.inputs;
+          batchEvent.pairsKept = batch.pairsKept;
+          batchEvent.pairsPruned = batch.pairsPruned;
+          batchEvent.found = batch.found;
+          batchEvent.newBuilds = batch.newBuilds;
+          batchEvent.commit();
+        }
         System.out.println();
         if (exit)
           return;
+        if (buildLog != null)
+          buildLog.flush();
+        checkpoint(cost);
+      }
+      if (started) {
+        for (SolverListener listener : listeners)
+          listener.levelDone(cost, allShapes.size(), allBuilds.size());
+        if (levelEvent.shouldCommit()) {
+          levelEvent.cost = cost;
+          levelEvent.shapes = allShapes.size();
+          levelEvent.builds = allBuilds.size();
+          levelEvent.commit();
+        }
       }
     }
+    waitForCheckpoint();
+    closeLog();
     System.out.printf("DONE\n\n");
+    for (SolverListener listener : listeners)
+      listener.runDone(allShapes.size(), allBuilds.size());
+  }
+
+  /**
+   * Open the build log, appending to it when resuming.
+   */
+  private void openLog() {
+    if (buildLogName == null)
+      return;
+    try {
+      buildLog = BuildLog.open(buildLogName, layers, canonical, allBuilds.size() > 0);
+    } catch (Exception e) {
+      System.err.printf("Error opening build log: %s\n", buildLogName);
+      e.printStackTrace();
+    }
+  }
+
+  private synchronized void closeLog() {
+    if (buildLog == null)
+      return;
+    System.out.printf("LOGGED  %,20d\n", buildLog.size());
+    buildLog.close();
+    buildLog = null;
   }
 
   /**
    * makeShapes
    * 
    * Given a list of starting shapes, find the shapes that can be made by performing all operations.
+   *
+   * @return counts and times of the batch
    */
-  void makeShapes(Set<Integer> inputShapes) {
-    Set<Integer> shapes = Collections.synchronizedSet(new HashSet<Integer>());
+  SolverListener.Batch makeShapes(int[] inputShapes) {
     List<IntStream> streams = new ArrayList<>();
-    int inputLen = inputShapes.size();
+    int inputLen = inputShapes.length;
     int numBuilds = allBuilds.size();
+    SolverListener.Batch batch = new SolverListener.Batch();
+    batch.inputs = inputLen;
+    // The one op streams come first
+    int numUnary = canonical ? KEY_ONE_OPS.length : ONE_OPS.length;
+    batch.unaryOps = 1l * numUnary * inputLen;
+
+    long before = System.nanoTime();
+    if (canonical) {
+      makeKeyStreams(streams, inputShapes);
+    } else {
+      System.out.printf("ONE_OPS %,20d\n", 1l * ONE_OPS.length * inputLen);
+      for (Ops.Name opName : ONE_OPS) {
+        streams.add(shapeStream(inputShapes).map(shape -> doOp(opName, shape)));
+      }
 
-    System.out.printf("ONE_OPS %,20d\n", 1l * ONE_OPS.length * inputLen);
-    for (Ops.Name opName : ONE_OPS) {
-      streams.add(shapeStream(inputShapes).map(shape -> doOp(opName, shape)));
+      System.out.printf("TWO_OPS %,20d\n",
+          1l * TWO_OPS.length * ((1l * inputLen * inputLen) + (2l * inputLen * allShapes.size())));
+      int oldLefts = leftHalves.size();
+      int oldRights = rightHalves.size();
+      addHalves(inputShapes);
+      streams.add(swapStream(oldLefts, oldRights));
+      // makeStreams(streams, inputShapes, Ops.Name.STACK, x -> !Shape.hasCrystal(x), x -> true);
+      // A 1-layer top lands on the highest layer under its quads, it is too tall if the bottom's last layer is there.
+      makeStreams(streams, inputShapes, Ops.Name.STACK, x -> this.oneLayerNoCrystal(x), x -> true,
+          Solver::bottomQuads, this::topQuads);
     }
 
-    System.out.printf("TWO_OPS %,20d\n",
-        1l * TWO_OPS.length * ((1l * inputLen * inputLen) + (2l * inputLen * allShapes.size())));
-    makeStreams(streams, inputShapes, Ops.Name.FAST_SWAP, x -> Shape.isLeftHalf(x), x -> Shape.isRightHalf(x));
-    makeStreams(streams, inputShapes, Ops.Name.FAST_SWAP, x -> Shape.isRightHalf(x), x -> Shape.isLeftHalf(x));
-    // makeStreams(streams, inputShapes, Ops.Name.STACK, x -> !Shape.hasCrystal(x), x -> true);
-    makeStreams(streams, inputShapes, Ops.Name.STACK, x -> this.oneLayerNoCrystal(x), x -> true);
-
-    IntStream stream;
-    // TODO: not sure where parallel() should go.
-    stream = streams.stream().flatMapToInt(s -> s).parallel();
-    stream = stream.filter(shape -> shape != 0);
-    stream = stream.filter(shape -> !allShapes.contains(shape));
-    stream = stream.filter(shape -> !inputShapes.contains(shape));
-    stream.forEach(shapes::add);
-
-    // Remove old duplicate shapes
-    oldBuilds.stream().forEach(build -> newShapes.get(build.cost).remove(build.shape));
-
-    // Insert new shapes
-    shapes.stream().forEach(shape -> newShapes.get(allBuilds.get(shape).cost).add(shape));
-
-    System.out.printf("FOUND   %,20d\n", shapes.size());
-    System.out.printf("DUPS    %,20d\n", oldBuilds.size());
-    System.out.printf("NEW     %,20d\n", allBuilds.size() - numBuilds);
+    batch.joinNanos = System.nanoTime() - before;
+
+    // Run each stream in parallel, a flatMap of all streams would run each one on a single thread.
+    IntList found = new IntList();
+    for (int i = 0; i < streams.size(); ++i) {
+      before = System.nanoTime();
+      for (int shape : streams.get(i).parallel().filter(shape -> shape != 0).toArray())
+        found.add(shape);
+      if (i < numUnary)
+        batch.unaryNanos += System.nanoTime() - before;
+      else
+        batch.joinNanos += System.nanoTime() - before;
+    }
 
-    shapes.clear();
-    oldBuilds.clear();
+    before = System.nanoTime();
+    // Queue the new and cheaper shapes. A shape can be stored more than once in a batch.
+    int[] shapes = found.toArray();
+    Arrays.parallelSort(shapes);
+    int numFound = 0;
+    for (int i = 0; i < shapes.length; ++i) {
+      if ((i > 0) && (shapes[i] == shapes[i - 1]))
+        continue;
+      newShapes.add(shapes[i], allBuilds.cost(shapes[i]));
+      ++numFound;
+    }
+    batch.frontierNanos = System.nanoTime() - before;
+
+    long pairs = numPairs.sumThenReset();
+    long pruned = numPruned.sumThenReset();
+    double prunedPercent = (pairs + pruned == 0) ? 0 : 100.0 * pruned / (pairs + pruned);
+    batch.pairsKept = pairs;
+    batch.pairsPruned = pruned;
+    batch.found = numFound;
+    batch.dups = numDups.sumThenReset();
+    batch.newBuilds = allBuilds.size() - numBuilds;
+    System.out.printf("PAIRS   %,20d\n", pairs);
+    System.out.printf("PRUNED  %,20d (%.1f%%)\n", pruned, prunedPercent);
+    System.out.printf("FOUND   %,20d\n", numFound);
+    System.out.printf("DUPS    %,20d\n", batch.dups);
+    System.out.printf("NEW     %,20d\n", batch.newBuilds);
+    return batch;
   }
 
-  /* This "completes the square" by doing all operations that have not been done before. */
-  void makeStreams(List<IntStream> streams, Set<Integer> inputShapes, Ops.Name opName, IntPredicate pre1,
-      IntPredicate pre2) {
+  /*
+   * This "completes the square" by doing all operations that have not been done before. Pairs with overlapping quad
+   * masks can't make a result, the new shapes are grouped by mask so those pairs are never formed.
+   */
+  void makeStreams(List<IntStream> streams, int[] inputShapes, Ops.Name opName, IntPredicate pre1,
+      IntPredicate pre2, IntUnaryOperator mask1, IntUnaryOperator mask2) {
     int[] set1 = shapeStream(inputShapes).filter(pre1).toArray();
     int[] set2 = shapeStream(inputShapes).filter(pre2).toArray();
+    int[][] fits1 = fits(set1, mask1);
+    int[][] fits2 = fits(set2, mask2);
     streams.add(shapeStream(allShapes).filter(pre2).mapMulti((s2, consumer) -> {
-      for (int s1 : set1)
+      int[] shapes1 = fits1[mask2.applyAsInt(s2)];
+      count(shapes1.length, set1.length);
+      for (int s1 : shapes1)
         consumer.accept(doOp(opName, s1, s2));
     }));
     streams.add(shapeStream(allShapes).filter(pre1).mapMulti((s1, consumer) -> {
-      for (int s2 : set2)
+      int[] shapes2 = fits2[mask1.applyAsInt(s1)];
+      count(shapes2.length, set2.length);
+      for (int s2 : shapes2)
         consumer.accept(doOp(opName, s1, s2));
     }));
     streams.add(shapeStream(set1).mapMulti((s1, consumer) -> {
-      for (int s2 : set2)
+      int[] shapes2 = fits2[mask1.applyAsInt(s1)];
+      count(shapes2.length, set2.length);
+      for (int s2 : shapes2)
         consumer.accept(doOp(opName, s1, s2));
     }));
   }
 
+  /**
+   * Add the half shapes to the half indexes.
+   */
+  private void addHalves(int[] shapes) {
+    for (int shape : shapes) {
+      if (Shape.isLeftHalf(shape))
+        leftHalves.add(shape, allBuilds.cost(shape));
+      else if (Shape.isRightHalf(shape))
+        rightHalves.add(shape, allBuilds.cost(shape));
+    }
+  }
+
+  /**
+   * Swap the new left halves with all right halves, and the old left halves with the new right halves. Swap is
+   * commutative so each pair is only done once. The pairs are split into tiles that fit in cache, which run in
+   * parallel. Results that are already done are dropped before they get to the build store.
+   *
+   * @param oldLefts  number of left halves done before this batch
+   * @param oldRights number of right halves done before this batch
+   */
+  private IntStream swapStream(int oldLefts, int oldRights) {
+    int[] lefts = leftHalves.shapes.toArray();
+    int[] leftCosts = leftHalves.costs.toArray();
+    int[] rights = rightHalves.shapes.toArray();
+    int[] rightCosts = rightHalves.costs.toArray();
+    int swapCost = opCosts.get(Ops.Name.FAST_SWAP);
+    List<int[]> tiles = new ArrayList<>();
+    addTiles(tiles, oldLefts, lefts.length, 0, rights.length);
+    addTiles(tiles, 0, oldLefts, oldRights, rights.length);
+    return tiles.stream().mapMultiToInt((tile, consumer) -> {
+      if (exit)
+        return;
+      int left, leftCost, result;
+      for (int i = tile[0]; i < tile[1]; ++i) {
+        left = lefts[i];
+        leftCost = swapCost + leftCosts[i];
+        for (int j = tile[2]; j < tile[3]; ++j) {
+          result = Ops.fastSwap(left, rights[j]);
+          if (allShapes.contains(result))
+            continue;
+          consumer.accept(store(result, leftCost + rightCosts[j], Ops.Name.FAST_SWAP, left, rights[j], 0));
+        }
+      }
+      int pairs = (tile[1] - tile[0]) * (tile[3] - tile[2]);
+      count(pairs, pairs);
+    });
+  }
+
+  /**
+   * Split the pairs of a range of left halves and a range of right halves into tiles.
+   */
+  private static void addTiles(List<int[]> tiles, int leftFrom, int leftTo, int rightFrom, int rightTo) {
+    for (int i = leftFrom; i < leftTo; i += TILE_SIZE) {
+      for (int j = rightFrom; j < rightTo; j += TILE_SIZE)
+        tiles.add(new int[] { i, Math.min(i + TILE_SIZE, leftTo), j, Math.min(j + TILE_SIZE, rightTo) });
+    }
+  }
+
+  /**
+   * Group shapes by the quad masks they fit with.
+   *
+   * @return for each 4 bit mask, the shapes whose own mask does not overlap it
+   */
+  private int[][] fits(int[] shapes, IntUnaryOperator mask) {
+    int[] masks = shapeStream(shapes).map(mask).toArray();
+    int[][] result = new int[16][];
+    for (int m = 0; m < 16; ++m) {
+      final int other = m;
+      result[m] = IntStream.range(0, shapes.length).filter(i -> (masks[i] & other) == 0).map(i -> shapes[i])
+          .toArray();
+    }
+    return result;
+  }
+
+  private void count(int pairs, int all) {
+    numPairs.add(pairs);
+    if (pairs < all)
+      numPruned.add(all - pairs);
+  }
+
+  /**
+   * makeKeyStreams
+   *
+   * Canonical mode version of the op streams, the input shapes are keys.
+   * - One ops are done on the shape built for each key, see KEY_ONE_OPS.
+   * - Stack uses every orientation of the top on the shape built for the bottom's key. Any other pair is a rotation
+   * or mirror image of one of these, with the same or a higher cost.
+   * - Swap uses left halves of the first key with right halves of the second. The mirror image of a (right, left)
+   * pair is a (left, right) pair with the same cost, so only one order of each pair of keys is needed.
+   */
+  void makeKeyStreams(List<IntStream> streams, int[] keys) {
+    System.out.printf("ONE_OPS %,20d\n", 1l * KEY_ONE_OPS.length * keys.length);
+    for (Ops.Name opName : KEY_ONE_OPS)
+      streams.add(shapeStream(keys).map(key -> doKeyOp(opName, member(key), allBuilds.cost(key))));
+
+    System.out.printf("TWO_OPS %,20d\n",
+        2l * ((1l * keys.length * keys.length) + (1l * keys.length * allShapes.size())));
+    makeKeyStreams(streams, keys, Ops.Name.FAST_SWAP, key -> orientations(key, Shape::isLeftHalf),
+        key -> orientations(key, Shape::isRightHalf), Solver::noQuads, Solver::noQuads, true);
+    makeKeyStreams(streams, keys, Ops.Name.STACK, key -> orientations(key, this::oneLayerNoCrystal),
+        key -> new int[] { member(key), allBuilds.cost(key) }, Solver::bottomQuads, this::topQuads, false);
+  }
+
+  /*
+   * Canonical mode version of makeStreams(), the sets are lists of (shape, cost) pairs made from each key. If mirrored
+   * is true the old x new pairs are skipped, their mirror images are in the new x old pairs.
+   */
+  void makeKeyStreams(List<IntStream> streams, int[] keys, Ops.Name opName, IntFunction<int[]> pairs1,
+      IntFunction<int[]> pairs2, IntUnaryOperator mask1, IntUnaryOperator mask2, boolean mirrored) {
+    int[][] set1 = shapeStream(keys).mapToObj(pairs1).filter(pairs -> pairs.length > 0).toArray(int[][]::new);
+    int[][] set2 = shapeStream(keys).mapToObj(pairs2).filter(pairs -> pairs.length > 0).toArray(int[][]::new);
+    streams.add(shapeStream(allShapes).mapMulti((k2, consumer) -> {
+      int[] p2 = pairs2.apply(k2);
+      for (int[] p1 : set1)
+        doKeyOps(opName, p1, p2, mask1, mask2, consumer);
+    }));
+    if (!mirrored) {
+      streams.add(shapeStream(allShapes).mapMulti((k1, consumer) -> {
+        int[] p1 = pairs1.apply(k1);
+        for (int[] p2 : set2)
+          doKeyOps(opName, p1, p2, mask1, mask2, consumer);
+      }));
+    }
+    streams.add(Arrays.stream(set1).mapMultiToInt((p1, consumer) -> {
+      for (int[] p2 : set2)
+        doKeyOps(opName, p1, p2, mask1, mask2, consumer);
+    }));
+  }
+
+  private void doKeyOps(Ops.Name opName, int[] pairs1, int[] pairs2, IntUnaryOperator mask1, IntUnaryOperator mask2,
+      IntConsumer consumer) {
+    int pairs = 0;
+    for (int i = 0; i < pairs1.length; i += 2) {
+      for (int j = 0; j < pairs2.length; j += 2) {
+        if ((mask1.applyAsInt(pairs1[i]) & mask2.applyAsInt(pairs2[j])) != 0)
+          continue;
+        consumer.accept(doKeyOp(opName, pairs1[i], pairs1[i + 1], pairs2[j], pairs2[j + 1]));
+        ++pairs;
+      }
+    }
+    count(pairs, (pairs1.length / 2) * (pairs2.length / 2));
+  }
+
+  /**
+   * Expand the builds of each key to builds of every shape in its class. Each shape is built by the key's build,
+   * transformed the same way as the shape, for the key's cost.
+   */
+  private BuildTable expandBuilds() {
+    BuildTable result = new BuildTable((int) Math.min(1l << (8 * layers), MAX_BUILDS));
+    IntStream.of(allBuilds.shapes()).parallel().forEach(key -> {
+      Build build = allBuilds.get(key);
+      int shape = member(key);
+      for (int num : Ops.CUT_TRANSFORMS)
+        result.putIfCheaper(Ops.transform(shape, num), build.cost, Ops.transformName(build.opName, num),
+            Ops.transform(build.shape1, num), Ops.transform(build.shape2, num));
+    });
+    return result;
+  }
+
+  int numBuilds() {
+    return allBuilds.size();
+  }
+
   void saveResults() {
-    ShapeFile.writeDB(RESULTS, allBuilds);
-    int maxCost = allBuilds.values().stream().mapToInt(v -> v.cost).max().getAsInt();
-    int totalCost = allBuilds.values().stream().mapToInt(v -> v.cost).sum();
+    BuildTable builds = canonical ? expandBuilds() : allBuilds;
+    ShapeFile.writeDB(RESULTS, builds);
+    int maxCost = IntStream.of(builds.shapes()).map(builds::cost).max().getAsInt();
+    int totalCost = IntStream.of(builds.shapes()).map(builds::cost).sum();
     System.out.println("\nSolver results");
-    System.out.printf("TOTAL     %,18d\n", allBuilds.size());
+    if (canonical)
+      System.out.printf("KEYS      %,18d\n", allBuilds.size());
+    System.out.printf("TOTAL     %,18d\n", builds.size());
     System.out.printf("SUM_COST  %,18d\n", totalCost);
     System.out.printf("MAX_COST  %,18d (%x)\n", maxCost, maxCost);
   }
 
   void shutdown() {
+    // The build log is not flushed here, threads may still be adding to it. It is complete up to the last batch.
     exit = true;
     saveResults();
   }
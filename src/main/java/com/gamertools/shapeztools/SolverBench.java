@@ -0,0 +1,190 @@
+package com.gamertools.shapeztools;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * SolverBench
+ *
+ * End to end benchmark of Solver and Constructor runs at bounded sizes.
+ * - Each case runs to completion on a new Solver or Constructor, with no build log or checkpoint. Timing starts after
+ * the op tables are made. The 1 and 2 layer cases are run once first as a warmup. Solver output is discarded.
+ * - For each level it records wall time, shapes/s and builds/s for the shapes and builds found in the level, peak heap
+ * and GC count and time. The level is the cost for a Solver and the iteration for a Constructor.
+ * - Each case adds a JSON line to RESULTS, so runs can be compared.
+ */
+class SolverBench implements SolverListener {
+
+  static final String RESULTS = "BigData/solverBench.jsonl";
+  static final int MAX_COST_3 = 30;
+
+  private final String name;
+  private final List<String> levels = new ArrayList<>();
+  private final List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+  private final List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+  private final long runStart;
+  private final long[] runGC;
+  private long levelStart;
+  private long[] levelGC;
+  private long peakHeap = 0;
+  private long lastShapes = 0;
+  private long lastBuilds = 0;
+  private String result;
+  private String summary;
+
+  private SolverBench(String name) {
+    this.name = name;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP)
+        heapPools.add(pool);
+    }
+    runStart = System.nanoTime();
+    runGC = gc();
+  }
+
+  /* GC count and milliseconds of all collectors */
+  private long[] gc() {
+    long[] result = new long[2];
+    for (GarbageCollectorMXBean collector : collectors) {
+      result[0] += Math.max(0, collector.getCollectionCount());
+      result[1] += Math.max(0, collector.getCollectionTime());
+    }
+    return result;
+  }
+
+  private long peakHeap() {
+    long bytes = 0;
+    for (MemoryPoolMXBean pool : heapPools)
+      bytes += pool.getPeakUsage().getUsed();
+    return bytes;
+  }
+
+  private static double perSecond(long count, long nanos) {
+    return (nanos == 0) ? 0 : 1e9 * count / nanos;
+  }
+
+  @Override
+  public void levelStarted(int level) {
+    for (MemoryPoolMXBean pool : heapPools)
+      pool.resetPeakUsage();
+    levelGC = gc();
+    levelStart = System.nanoTime();
+  }
+
+  @Override
+  public void levelDone(int level, long shapes, long builds) {
+    long nanos = System.nanoTime() - levelStart;
+    long[] gc = gc();
+    long heap = peakHeap();
+    peakHeap = Math.max(peakHeap, heap);
+    levels.add(String.format(Locale.ROOT,
+        "{\"level\":%d,\"millis\":%d,\"shapes\":%d,\"builds\":%d,\"shapesPerSec\":%.0f,\"buildsPerSec\":%.0f,"
+            + "\"peakHeap\":%d,\"gcCount\":%d,\"gcMillis\":%d}",
+        level, nanos / 1000000, shapes, builds, perSecond(shapes - lastShapes, nanos),
+        perSecond(builds - lastBuilds, nanos), heap, gc[0] - levelGC[0], gc[1] - levelGC[1]));
+    lastShapes = shapes;
+    lastBuilds = builds;
+  }
+
+  @Override
+  public void runDone(long shapes, long builds) {
+    long nanos = System.nanoTime() - runStart;
+    long[] gc = gc();
+    result = String.format(Locale.ROOT,
+        "{\"case\":\"%s\",\"date\":\"%s\",\"processors\":%d,\"maxHeap\":%d,\"millis\":%d,\"shapes\":%d,\"builds\":%d,"
+            + "\"shapesPerSec\":%.0f,\"buildsPerSec\":%.0f,\"peakHeap\":%d,\"gcCount\":%d,\"gcMillis\":%d,"
+            + "\"levels\":[%s]}",
+        name, Instant.now(), Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory(),
+        nanos / 1000000, shapes, builds, perSecond(shapes, nanos), perSecond(builds, nanos), peakHeap,
+        gc[0] - runGC[0], gc[1] - runGC[1], String.join(",", levels));
+    summary = String.format("%-14s %8d ms %,12d shapes %,12d builds %,10.0f builds/s %,8d MB peak %5d GCs %6d ms GC",
+        name, nanos / 1000000, shapes, builds, perSecond(builds, nanos), peakHeap >> 20, gc[0] - runGC[0],
+        gc[1] - runGC[1]);
+  }
+
+  static SolverBench solver(int layers, int maxCost) {
+    String name = String.format("solver-%d", layers) + ((maxCost < Integer.MAX_VALUE) ? "-cost" + maxCost : "");
+    Solver solver = new Solver(layers);
+    SolverBench bench = start(name);
+    solver.setFiles(null, null);
+    solver.setMaxCost(maxCost);
+    solver.addListener(bench);
+    solver.run();
+    return bench;
+  }
+
+  static SolverBench constructor(int layers) {
+    Constructor constructor = new Constructor(layers);
+    SolverBench bench = start(String.format("constructor-%d", layers));
+    constructor.addListener(bench);
+    constructor.run();
+    return bench;
+  }
+
+  private static SolverBench start(String name) {
+    System.gc();
+    return new SolverBench(name);
+  }
+
+  /**
+   * Run every case and append the results to RESULTS.
+   */
+  static void run() {
+    run(MAX_COST_3);
+  }
+
+  /**
+   * @param maxCost3 last cost of the 3-layer Solver case, 0 to skip it
+   */
+  static void run(int maxCost3) {
+    PrintStream stdout = System.out;
+    List<SolverBench> benches = new ArrayList<>();
+    try {
+      System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+      for (int layers = 1; layers <= 2; ++layers) {
+        constructor(layers);
+        solver(layers, Integer.MAX_VALUE);
+      }
+      benches.add(constructor(1));
+      benches.add(constructor(2));
+      benches.add(solver(1, Integer.MAX_VALUE));
+      benches.add(solver(2, Integer.MAX_VALUE));
+      if (maxCost3 > 0)
+        benches.add(solver(3, maxCost3));
+    } finally {
+      System.setOut(stdout);
+    }
+    for (SolverBench bench : benches)
+      System.out.println(bench.summary);
+
+    Path file = Paths.get(RESULTS);
+    try {
+      if (file.toAbsolutePath().getParent() != null)
+        Files.createDirectories(file.toAbsolutePath().getParent());
+      StringBuilder lines = new StringBuilder();
+      for (SolverBench bench : benches)
+        lines.append(bench.result).append('\n');
+      Files.write(file, lines.toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+          StandardOpenOption.APPEND);
+      System.out.printf("Results added to %s\n", file);
+    } catch (IOException e) {
+      System.err.printf("Error writing results: %s\n", file);
+      e.printStackTrace();
+    }
+  }
+
+}
@@ -0,0 +1,99 @@
+package com.gamertools.shapeztools;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * SolverEvents
+ *
+ * JDK Flight Recorder events for Solver and ShapeDB phases, to line up GC and CPU samples with batches, cost levels,
+ * file writes and shard loads. They are only recorded while a recording is running, for example with
+ * -XX:StartFlightRecording=filename=solver.jfr. With no recording, shouldCommit() is false and the JIT removes the
+ * events.
+ */
+final class SolverEvents {
+
+  private SolverEvents() {
+  }
+
+  @Name("shapez.SolverBatch")
+  @Label("Solver Batch")
+  @Category({ "Shapez", "Solver" })
+  static class Batch extends Event {
+    @Label("Cost")
+    int cost;
+
+    @Label("Input Shapes")
+    int inputs;
+
+    @Label("Pairs Kept")
+    long pairsKept;
+
+    @Label("Pairs Pruned")
+    long pairsPruned;
+
+    @Label("Found")
+    long found;
+
+    @Label("New Builds")
+    long newBuilds;
+  }
+
+  @Name("shapez.SolverCostLevel")
+  @Label("Solver Cost Level")
+  @Description("All batches of one cost")
+  @Category({ "Shapez", "Solver" })
+  static class CostLevel extends Event {
+    @Label("Cost")
+    int cost;
+
+    @Label("Shapes")
+    long shapes;
+
+    @Label("Builds")
+    long builds;
+  }
+
+  @Name("shapez.Checkpoint")
+  @Label("Checkpoint Write")
+  @Category({ "Shapez", "Solver" })
+  static class Checkpoint extends Event {
+    @Label("Cost")
+    int cost;
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+  }
+
+  @Name("shapez.DBWrite")
+  @Label("DB Write")
+  @Category({ "Shapez", "Files" })
+  static class DBWrite extends Event {
+    @Label("File")
+    String file;
+
+    @Label("Builds")
+    long builds;
+  }
+
+  @Name("shapez.ShardLoad")
+  @Label("ShapeDB Shard Load")
+  @Category({ "Shapez", "ShapeDB" })
+  static class ShardLoad extends Event {
+    @Label("Shard")
+    int index;
+
+    @Label("Binary")
+    boolean binary;
+
+    @Label("Size")
+    @DataAmount
+    long bytes;
+  }
+
+}
@@ -0,0 +1,58 @@
+package com.gamertools.shapeztools;
+
+/**
+ * SolverListener
+ *
+ * Progress callbacks from a Solver or Constructor run, made on the thread that calls run(). A level is a cost for a
+ * Solver and an iteration for a Constructor.
+ */
+interface SolverListener {
+
+  /**
+   * Counts and times of one Solver batch. Pairs are the two-op pairs of the batch, generated is kept plus pruned,
+   * pruned pairs are skipped by their quad masks. The two-op time includes making the half and mask indexes.
+   */
+  class Batch {
+    int cost;
+    int inputs;
+    long unaryOps;
+    long pairsKept;
+    long pairsPruned;
+    long found;
+    long dups;
+    long newBuilds;
+    long unaryNanos;
+    long joinNanos;
+    long frontierNanos;
+    long heapUsed;
+
+    long pairsGenerated() {
+      return pairsKept + pairsPruned;
+    }
+
+    long ops() {
+      return unaryOps + pairsKept;
+    }
+
+    long nanos() {
+      return unaryNanos + joinNanos + frontierNanos;
+    }
+  }
+
+  default void levelStarted(int level) {
+  }
+
+  default void batchDone(Batch batch) {
+  }
+
+  /**
+   * @param shapes shapes found so far
+   * @param builds builds found so far, 0 for a Constructor
+   */
+  default void levelDone(int level, long shapes, long builds) {
+  }
+
+  default void runDone(long shapes, long builds) {
+  }
+
+}
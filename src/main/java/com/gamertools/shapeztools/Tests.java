@@ -1,6 +1,8 @@
 package com.gamertools.shapeztools;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
@@ -11,6 +13,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.IntBinaryOperator;
 import java.util.function.IntUnaryOperator;
 import java.util.stream.Collectors;
@@ -43,16 +46,16 @@ public class Tests {
   static final String NOP_CODE = Ops.Name.NOP.code; // force Ops.Name to init
 
   static Random rng = new Random();
-  static Set<Integer> allShapes, impShapes;
+  static ShapeSet allShapes, impShapes;
   static Map<Integer, Solver.Build> allBuilds;
 
-  private static IntStream shapeStream(Set<Integer> shapes) {
-    return shapes.stream().mapToInt(Integer::intValue);
+  private static IntStream shapeStream(ShapeSet shapes) {
+    return shapes.stream();
     // .peek(num -> System.out.println(String.format("%08x", num) + " " + Thread.currentThread().getName()));
   }
 
   private static IntStream impShapeStream() {
-    return impShapes.stream().mapToInt(Integer::intValue);
+    return impShapes.stream();
   }
 
   static void run() {
@@ -88,7 +91,7 @@ public class Tests {
   }
 
   private static void loadShapes(String name) {
-    allShapes = ShapeFile.read(name);
+    allShapes = ShapeFile.read(name, MAX_LAYERS);
   }
 
   private static void loadSolutions(String name) {
@@ -115,8 +118,8 @@ public class Tests {
 
   /* Compare two shape files */
   static int[] diffShapes(String oldName, String newName) {
-    Set<Integer> oldShapes = ShapeFile.read(oldName);
-    Set<Integer> newShapes = ShapeFile.read(newName);
+    ShapeSet oldShapes = ShapeFile.read(oldName, MAX_LAYERS);
+    ShapeSet newShapes = ShapeFile.read(newName, MAX_LAYERS);
     System.out.printf("old %,10d\n", oldShapes.size());
     System.out.printf("new %,10d\n", newShapes.size());
     int[] shapes = shapeStream(newShapes).filter(shape -> !oldShapes.contains(shape)).toArray();
@@ -220,7 +223,7 @@ public class Tests {
   }
 
   static void findImpossibleShapes() {
-    Set<Integer> shapeSet = new HashSet<>();
+    ShapeSet shapeSet = new ShapeSet(MAX_LAYERS);
     int shape;
     for (long i = 0; i <= 0xffffffffl; ++i) {
       shape = (int) i;
@@ -230,8 +233,7 @@ public class Tests {
         continue;
       shapeSet.add(shape);
     }
-    int[] shapes = shapeSet.stream().mapToInt(Integer::intValue).sorted().toArray();
-    ShapeFile.write(IMP_SHAPES_FILENAME_3, shapes);
+    ShapeFile.write(IMP_SHAPES_FILENAME_3, shapeSet);
   }
 
   static void filterPossibleShapes() {
@@ -265,8 +267,9 @@ public class Tests {
 
   static void makeSwapShapes() {
     final String SWAP_NAME = "swap.txt";
+    int[] rights = allShapes.toArray();
     IntStream stream = shapeStream(allShapes).mapMulti((left, consumer) -> {
-      for (int right : allShapes)
+      for (int right : rights)
         consumer.accept(Ops.swapRight(left, right));
     });
     ShapeFile.write(SWAP_NAME, stream.distinct().sorted().parallel().toArray());
@@ -288,9 +291,10 @@ public class Tests {
     final String FASTSWAP_NAME = "data/fastswap.txt";
     final String RESULT_NAME = "data/result.txt";
     // Get all swap shapes
-    Set<Integer> swapShapes = ShapeFile.read(FASTSWAP_NAME);
+    ShapeSet swapShapes = ShapeFile.read(FASTSWAP_NAME, MAX_LAYERS);
     // Convert to key values
-    Set<Integer> keyShapes = swapShapes.stream().map(Ops::keyValue).distinct().collect(Collectors.toSet());
+    ShapeSet keyShapes = new ShapeSet(MAX_LAYERS);
+    shapeStream(swapShapes).map(Ops::keyValue).parallel().forEach(keyShapes::add);
     // Filter out swap shapes
     IntStream stream = shapeStream(allShapes).filter(s -> !keyShapes.contains(Ops.keyValue(s)));
     // Convert to key values
@@ -320,6 +324,22 @@ public class Tests {
     System.out.printf("average time: %.2f, %.2f MOPS\n", aveTime, mops);
   }
 
+  /* Time the ops that break crystals */
+  static void crystalPerf() {
+    final int ROUNDS = 5;
+    final int ITERS = 10000000;
+    String[] names = { "cutLeft", "cutRight", "pinPush" };
+    IntUnaryOperator[] funcs = { Ops::cutLeft, Ops::cutRight, Ops::pinPush };
+    for (int i = 0; i < funcs.length; ++i) {
+      String name = names[i];
+      IntUnaryOperator func = funcs[i];
+      int[] times = IntStream.range(0, ROUNDS).map((x) -> Tests.opPerf(name, func, ITERS)).toArray();
+      double aveTime = IntStream.of(times).average().getAsDouble();
+      double mops = 1f * ITERS / 1000 / aveTime;
+      System.out.printf("%s average time: %.2f, %.2f MOPS\n", name, aveTime, mops);
+    }
+  }
+
   static int opPerf(String name, IntUnaryOperator func, int iters) {
     Random rng = new Random();
     int[] values = rng.ints(iters).toArray();
@@ -363,6 +383,319 @@ public class Tests {
     return delta;
   }
 
+  /* Time ops on all threads with the op counters on and off */
+  static void statsPerf() {
+    final int ROUNDS = 5;
+    final int ITERS = 10000000;
+    int[] v1 = rng.ints(ITERS).map(Tests::randomLayers).toArray();
+    int[] v2 = rng.ints(ITERS).map(Tests::randomLayers).toArray();
+    long[] best = { Long.MAX_VALUE, Long.MAX_VALUE };
+    long[] counts = new long[2];
+    for (int round = 0; round < 2 * ROUNDS; ++round) {
+      int mode = round % 2;
+      Ops.Stats.enabled = (mode == 0);
+      Ops.Stats.clear();
+      long before = System.nanoTime();
+      IntStream.range(0, ITERS).parallel()
+          .map(i -> Ops.stack(v1[i], v2[i]) ^ Ops.cutLeft(v1[i]) ^ Ops.rotateRight(v2[i])).sum();
+      best[mode] = Math.min(best[mode], System.nanoTime() - before);
+      counts[mode] = Ops.Stats.STACK.get() + Ops.Stats.CUT.get() + Ops.Stats.ROTATE.get();
+    }
+    Ops.Stats.enabled = true;
+    System.out.printf("%d threads, compiled in %b\n", Runtime.getRuntime().availableProcessors(), Ops.Stats.COUNT);
+    for (int mode = 0; mode < 2; ++mode) {
+      System.out.printf("counters %-3s %6d ms, %6.1f Mops/s, %,d counted\n", (mode == 0) ? "on" : "off",
+          best[mode] / 1000000, 3e3 * ITERS / best[mode], counts[mode]);
+    }
+  }
+
+  /* Compare 3-layer op tables with the ops they replace */
+  static void opTablePerf() {
+    final int LAYERS = 3;
+    final int ITERS = 10000000;
+    int[] values = rng.ints(ITERS).map(value -> value & 0x0fff0fff).toArray();
+    for (Ops.Name opName : OpTable.TABLE_OPS) {
+      OpTable table = OpTable.get(opName, LAYERS, null);
+      IntUnaryOperator op = shape -> Ops.invoke(opName, shape);
+      long before = new Date().getTime();
+      int[] results1 = IntStream.of(values).parallel().map(op).toArray();
+      long time1 = new Date().getTime() - before;
+      before = new Date().getTime();
+      int[] results2 = IntStream.of(values).parallel().map(table).toArray();
+      long time2 = new Date().getTime() - before;
+      long diffs = IntStream.range(0, ITERS).filter(i -> results1[i] != results2[i]).count();
+      System.out.printf("%s op %d ms, table %d ms, %d diffs\n", opName.code, time1, time2, diffs);
+    }
+  }
+
+  /* Compare cold and warm lookups in text and binary ShapeDB shards */
+  static void shapeDBPerf() {
+    final String TEXT_DB = "BigData/dbout";
+    final String BINARY_DB = "BigData/dbbin";
+    final int WARM_LOOKUPS = 1000000;
+    if (!Files.isDirectory(Path.of(BINARY_DB)))
+      ShapeDB.convert(TEXT_DB, BINARY_DB);
+    int[] shapes = sampleShapes(TEXT_DB, 1000);
+    if (shapes.length == 0) {
+      System.out.printf("No shapes found in: %s\n", TEXT_DB);
+      return;
+    }
+    for (String name : new String[] { TEXT_DB, BINARY_DB }) {
+      // Cold, each lookup opens a new ShapeDB and loads the shard
+      int rounds = name.equals(TEXT_DB) ? 3 : 1000;
+      long before = System.nanoTime();
+      for (int i = 0; i < rounds; ++i)
+        ShapeDB.open(name).getBuild(shapes[i % shapes.length]);
+      double coldTime = (System.nanoTime() - before) / 1e6 / rounds;
+
+      // Warm, all shards are loaded
+      ShapeDB db = ShapeDB.open(name);
+      for (int shape : shapes)
+        db.getBuild(shape);
+      before = System.nanoTime();
+      for (int i = 0; i < WARM_LOOKUPS; ++i)
+        db.getBuild(shapes[i % shapes.length]);
+      double warmTime = 1.0 * (System.nanoTime() - before) / WARM_LOOKUPS;
+      System.out.printf("%s cold lookup %.3f ms, warm lookup %.0f ns\n", name, coldTime, warmTime);
+    }
+  }
+
+  /* Random lookups in a ShapeDB with a bounded shard cache */
+  static void shapeDBCachePerf() {
+    final String TEXT_DB = "BigData/dbout";
+    final String BINARY_DB = "BigData/dbbin";
+    final int LOOKUPS = 1000000;
+    final int[] MAX_SHARDS = { 1, 2, 4, Integer.MAX_VALUE };
+    if (!Files.isDirectory(Path.of(BINARY_DB)))
+      ShapeDB.convert(TEXT_DB, BINARY_DB);
+    int[] shapes = sampleShapes(TEXT_DB, 10000);
+    Random rng = new Random(1);
+    for (int maxShards : MAX_SHARDS) {
+      ShapeDB db = ShapeDB.open(BINARY_DB, maxShards, Long.MAX_VALUE);
+      long before = System.currentTimeMillis();
+      for (int i = 0; i < LOOKUPS; ++i)
+        db.getBuild(shapes[rng.nextInt(shapes.length)]);
+      System.out.printf("max shards %d, %d ms, %s\n", maxShards, System.currentTimeMillis() - before, db.stats());
+    }
+  }
+
+  /* Parallel lookups in one ShapeDB, checked against a single thread */
+  static void shapeDBParallelPerf() {
+    final String TEXT_DB = "BigData/dbout";
+    final String BINARY_DB = "BigData/dbbin";
+    final int LOOKUPS = 4000000;
+    if (!Files.isDirectory(Path.of(BINARY_DB)))
+      ShapeDB.convert(TEXT_DB, BINARY_DB);
+    int[] shapes = sampleShapes(TEXT_DB, 10000);
+    ShapeDB single = ShapeDB.open(BINARY_DB);
+    String[] expected = IntStream.of(shapes).mapToObj(shape -> single.getBuild(shape).toString()).toArray(String[]::new);
+    int maxThreads = Runtime.getRuntime().availableProcessors();
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      ShapeDB db = ShapeDB.open(BINARY_DB);
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      long before = System.currentTimeMillis();
+      long bad = 0;
+      try {
+        bad = pool.submit(() -> IntStream.range(0, LOOKUPS).parallel()
+            .filter(i -> !db.getBuild(shapes[i % shapes.length]).toString().equals(expected[i % shapes.length]))
+            .count()).get();
+      } catch (Exception e) {
+        e.printStackTrace();
+      } finally {
+        pool.shutdown();
+      }
+      long time = Math.max(1, System.currentTimeMillis() - before);
+      System.out.printf("threads %d, %d ms, %,d lookups/s, %d bad, %s\n", threads, time, 1000l * LOOKUPS / time, bad,
+          db.stats());
+    }
+  }
+
+  /* Compare reading a DB into a map and into a BuildTable */
+  static void readDBPerf() {
+    final String DB_NAME = "BigData/dbout";
+    long before = System.currentTimeMillis();
+    Map<Integer, Solver.Build> builds = ShapeFile.readMultiDB(DB_NAME);
+    System.out.printf("readMultiDB %d ms\n", System.currentTimeMillis() - before);
+    before = System.currentTimeMillis();
+    BuildTable table = ShapeFile.readBuildTable(DB_NAME);
+    System.out.printf("readBuildTable %d ms\n", System.currentTimeMillis() - before);
+
+    long bad = builds.values().stream().filter(build -> {
+      Solver.Build other = table.get(build.shape);
+      return (other == null) || (other.cost != build.cost) || (other.opName != build.opName)
+          || (other.shape1 != build.shape1) || (other.shape2 != build.shape2);
+    }).count();
+    System.out.printf("%,d builds, %,d in table, %d bad\n", builds.size(), table.size(), bad);
+  }
+
+  /* Compare text and compressed shape list files */
+  static void shapeListPerf() {
+    final String TEXT_NAME = "BigData/shapes3.txt";
+    final String LIST_NAME = "BigData/shapes3.sl";
+    final int LAYERS = 3;
+    if (!Files.exists(Path.of(TEXT_NAME)))
+      ShapeFile.write(TEXT_NAME, ShapeFile.read("BigData/dbout/SDB00", LAYERS));
+    ShapeList.fromText(TEXT_NAME, LIST_NAME, LAYERS);
+
+    long before = System.currentTimeMillis();
+    ShapeSet textShapes = ShapeFile.read(TEXT_NAME, LAYERS);
+    long textTime = System.currentTimeMillis() - before;
+    before = System.currentTimeMillis();
+    ShapeSet listShapes = ShapeFile.read(LIST_NAME, LAYERS);
+    long listTime = System.currentTimeMillis() - before;
+    before = System.currentTimeMillis();
+    int[] shapes = ShapeList.readArray(LIST_NAME);
+    long arrayTime = System.currentTimeMillis() - before;
+
+    long bad = textShapes.stream().filter(shape -> !listShapes.contains(shape)).count();
+    bad += Math.abs(textShapes.size() - listShapes.size()) + Math.abs(textShapes.size() - shapes.length);
+    int low = shapes[shapes.length / 3], high = shapes[shapes.length / 2];
+    int[] range = ShapeList.readRange(LIST_NAME, low, high);
+    if (!Arrays.equals(range, Arrays.copyOfRange(shapes, shapes.length / 3, shapes.length / 2 + 1)))
+      ++bad;
+    try {
+      long textSize = Files.size(Path.of(TEXT_NAME));
+      long listSize = Files.size(Path.of(LIST_NAME));
+      System.out.printf("text %,d bytes, %d ms\n", textSize, textTime);
+      System.out.printf("list %,d bytes (%.2f bytes/shape), %d ms to ShapeSet, %d ms to array\n", listSize,
+          1.0 * listSize / shapes.length, listTime, arrayTime);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    System.out.printf("%,d shapes, %d bad\n", shapes.length, bad);
+  }
+
+  /* A shape list write that fails on an out of order shape must not create or replace the file */
+  static void shapeListAbortTest() {
+    try {
+      Path dir = Files.createTempDirectory("shapelist");
+      String name = dir.resolve("shapes.sl").toString();
+      int bad = 0;
+      // Fail at a block boundary, then inside a block, first with no file and then over a valid file
+      for (int count : new int[] { ShapeList.BLOCK_SIZE, ShapeList.BLOCK_SIZE + 10, ShapeList.BLOCK_SIZE,
+          ShapeList.BLOCK_SIZE + 10 }) {
+        boolean exists = Files.exists(Path.of(name));
+        byte[] before = exists ? Files.readAllBytes(Path.of(name)) : null;
+        try (ShapeList.Writer out = new ShapeList.Writer(name)) {
+          for (int shape = 1; shape <= count; ++shape)
+            out.add(shape);
+          out.add(1);
+          out.finish();
+          ++bad;
+        } catch (IllegalArgumentException e) {
+        }
+        if (exists ? !Arrays.equals(before, Files.readAllBytes(Path.of(name))) : Files.exists(Path.of(name)))
+          ++bad;
+        if (Files.exists(Path.of(name + ".tmp")))
+          ++bad;
+        if (!exists) {
+          try (ShapeList.Writer out = new ShapeList.Writer(name)) {
+            for (int shape = 1; shape <= 2 * count; ++shape)
+              out.add(shape);
+            out.finish();
+          }
+          if (ShapeList.readArray(name).length != 2 * count)
+            ++bad;
+        }
+      }
+      Files.deleteIfExists(Path.of(name));
+      Files.delete(dir);
+      System.out.printf("shape list abort: %d bad\n", bad);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /* Negative lookups in a text ShapeDB, without and with shard filters */
+  static void shapeDBFilterPerf() {
+    final String TEXT_DB = "BigData/dbout";
+    final int COLD_LOOKUPS = 3;
+    final int LOOKUPS = 1000000;
+    int[] shapes = sampleShapes(TEXT_DB, 10000);
+    // Random shapes in the same shards, nearly all of them impossible
+    Random rng = new Random(1);
+    int[] others = IntStream.range(0, LOOKUPS)
+        .map(i -> (rng.nextInt() & 0x0fff0fff) | (shapes[i % shapes.length] & 0xf000f000)).toArray();
+    try (Stream<Path> files = Files.list(Path.of(TEXT_DB))) {
+      for (Path file : (Iterable<Path>) files.filter(file -> file.toString().endsWith(".flt"))::iterator)
+        Files.delete(file);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    for (String mode : new String[] { "no filters", "filters" }) {
+      if (mode.equals("filters"))
+        ShapeDB.writeFilters(TEXT_DB);
+      // Cold, each lookup opens a new ShapeDB
+      long before = System.nanoTime();
+      for (int i = 0; i < COLD_LOOKUPS; ++i)
+        ShapeDB.open(TEXT_DB).getBuild(others[i]);
+      double coldTime = (System.nanoTime() - before) / 1e6 / COLD_LOOKUPS;
+
+      ShapeDB db = ShapeDB.open(TEXT_DB);
+      before = System.currentTimeMillis();
+      int[] found = db.buildable(others);
+      long time = System.currentTimeMillis() - before;
+      long missing = IntStream.of(shapes).filter(shape -> db.getBuild(shape) == null).count();
+      System.out.printf("%s: cold negative lookup %.3f ms, %,d of %,d buildable in %d ms, %d missing\n  %s\n", mode,
+          coldTime, found.length, others.length, time, missing, db.stats());
+    }
+  }
+
+  /* About maxShapes shapes spread over the text shards of a ShapeDB */
+  static int[] sampleShapes(String dirName, int maxShapes) {
+    IntStream.Builder result = IntStream.builder();
+    try (Stream<Path> files = Files.list(Path.of(dirName))) {
+      Path[] shards = files.filter(file -> file.getFileName().toString().matches("SDB[0-9a-f]{2}"))
+          .toArray(Path[]::new);
+      for (Path file : shards) {
+        long numLines;
+        try (Stream<String> lines = Files.lines(file)) {
+          numLines = lines.count();
+        }
+        long step = Math.max(1, numLines * shards.length / maxShapes);
+        try (Stream<String> lines = Files.lines(file)) {
+          int[] i = { 0 };
+          lines.forEach(line -> {
+            if (i[0]++ % step == 0)
+              result.add(Integer.parseUnsignedInt(line.substring(0, 8), 16));
+          });
+        }
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    return result.build().toArray();
+  }
+
+  /* Time a 2-layer solve with 1 to N worker threads */
+  static void solverPerf() {
+    final int LAYERS = 2;
+    int maxThreads = Runtime.getRuntime().availableProcessors();
+    PrintStream stdout = System.out;
+    long time1 = 0;
+    System.out.printf("Solver scaling, %d layers\n", LAYERS);
+    System.out.printf("%7s %10s %8s %14s\n", "threads", "time(ms)", "speedup", "builds/s");
+    for (int threads = 1; threads <= maxThreads; ++threads) {
+      Solver solver = new Solver(LAYERS);
+      solver.setFiles(null, null);
+      ForkJoinPool pool = new ForkJoinPool(threads);
+      long before = new Date().getTime();
+      try {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        pool.submit(solver::run).get();
+      } catch (Exception e) {
+        e.printStackTrace();
+      } finally {
+        System.setOut(stdout);
+        pool.shutdown();
+      }
+      long time = Math.max(1, new Date().getTime() - before);
+      if (threads == 1)
+        time1 = time;
+      System.out.printf("%7d %10d %8.2f %,14d\n", threads, time, 1.0 * time1 / time, 1000l * solver.numBuilds() / time);
+    }
+  }
+
   static int plusone(int x) {
     return x + 1;
   }
@@ -394,7 +727,7 @@ public class Tests {
   void Find1() {
     int[] lefts = shapeStream(allShapes).filter(Shape::isLeftHalf).toArray();
     int[] rights = shapeStream(allShapes).filter(Shape::isRightHalf).toArray();
-    Set<Integer> workSet = new HashSet<>(allShapes);
+    Set<Integer> workSet = shapeStream(allShapes).boxed().collect(Collectors.toSet());
     int[] shapes;
     // Get list of all shapes that can be swapped.
     Set<Integer> swapped = IntStream.of(lefts).mapMulti((left, consumer) -> {
@@ -431,8 +764,8 @@ public class Tests {
       for (int right : rights)
         consumer.accept(Ops.fastSwapRight(left, right));
     });
-    Set<Integer> allSwapKeys = stream.parallel().filter(s -> (s == Ops.keyValue(s))).boxed()
-        .collect(Collectors.toSet());
+    ShapeSet allSwapKeys = new ShapeSet(MAX_LAYERS);
+    stream.parallel().filter(s -> (s == Ops.keyValue(s))).forEach(allSwapKeys::add);
     shapes = shapeStream(allShapes).filter(s -> !allSwapKeys.contains(Ops.keyValue(s))).parallel().toArray();
     Tools.displayShapes(shapes);
   }
@@ -446,7 +779,7 @@ public class Tests {
   static void readTest1() {
     String name = "data/allShapes1.txt";
     System.out.printf("Read file: %s\n", name);
-    Set<Integer> shapeSet = ShapeFile.read(name);
+    ShapeSet shapeSet = ShapeFile.read(name, MAX_LAYERS);
     Tools.displayShapes(shapeSet);
   }
 
@@ -503,15 +836,16 @@ public class Tests {
     }
   }
 
-  static void findSolution(ShapeDB db, int shape, int indent) {
+  /* Print a solution by looking up each build, the shapes of shared builds are looked up again */
+  static String findSolution(ShapeDB db, int shape, int indent) {
     ShapeDB.Build build = db.getBuild(shape);
-    // System.out.printf("%3d ", build.cost);
-    System.out.printf("%s%08x <- %s\n", "  ".repeat(indent), shape, build);
+    String result = String.format("%s%08x <- %s\n", "  ".repeat(indent), shape, build);
     if (build.opName == Ops.Name.NOP)
-      return;
-    findSolution(db, build.shape1, indent + 1);
+      return result;
+    result += findSolution(db, build.shape1, indent + 1);
     if (build.shape2 != 0)
-      findSolution(db, build.shape2, indent + 1);
+      result += findSolution(db, build.shape2, indent + 1);
+    return result;
   }
 
   static void findSolution(ShapeDB db, int shape) {
@@ -521,7 +855,38 @@ public class Tests {
       System.out.println("Build database or shape is missing");
       return;
     }
-    findSolution(db, shape, 0);
+    System.out.print(new SolutionResolver(db).resolve(shape).tree());
+  }
+
+  /* Compare resolving solutions one at a time and in batches */
+  static void solutionResolverPerf() {
+    final String DB_NAME = "BigData/dbout";
+    final int[] BATCH_SIZES = { 1, 100, 10000 };
+    int[] shapes = sampleShapes(DB_NAME, 10000);
+    ShapeDB db = ShapeDB.open(DB_NAME);
+    db.getBuild(shapes[0]);
+
+    long before = System.currentTimeMillis();
+    String[] expected = IntStream.of(shapes).mapToObj(shape -> findSolution(db, shape, 0)).toArray(String[]::new);
+    long time = Math.max(1, System.currentTimeMillis() - before);
+    System.out.printf("recursive: %,d targets in %d ms, %,d targets/s, %,d lookups\n", shapes.length, time,
+        1000L * shapes.length / time, Arrays.stream(expected).mapToLong(tree -> tree.lines().count()).sum());
+
+    for (int batchSize : BATCH_SIZES) {
+      SolutionResolver resolver = new SolutionResolver(db);
+      SolutionResolver.Node[] solutions = new SolutionResolver.Node[shapes.length];
+      before = System.currentTimeMillis();
+      for (int i = 0; i < shapes.length; i += batchSize) {
+        int[] batch = Arrays.copyOfRange(shapes, i, Math.min(i + batchSize, shapes.length));
+        Map<Integer, SolutionResolver.Node> nodes = resolver.resolve(batch);
+        for (int j = 0; j < batch.length; ++j)
+          solutions[i + j] = nodes.get(batch[j]);
+      }
+      time = Math.max(1, System.currentTimeMillis() - before);
+      long bad = IntStream.range(0, shapes.length).filter(i -> !solutions[i].tree().equals(expected[i])).count();
+      System.out.printf("batch %d: %,d targets in %d ms, %,d targets/s, %,d lookups, %,d nodes, %d bad\n", batchSize,
+          shapes.length, time, 1000L * shapes.length / time, resolver.lookups(), resolver.size(), bad);
+    }
   }
 
   static void f1(int... values) {
@@ -542,20 +907,7 @@ public class Tests {
   }
 
   static void compFiles(String name1, String name2) {
-    Map<Integer, Solver.Build> b1 = ShapeFile.readMultiDB(name1);
-    Map<Integer, Solver.Build> b2 = ShapeFile.readMultiDB(name2);
-    Set<Integer> keys = b1.keySet();
-    int found = 0, cost1, cost2;
-    for (Integer key : keys) {
-      cost1 = b1.get(key).cost;
-      cost2 = b2.get(key).cost;
-      if (cost1 != cost2) {
-        System.out.printf("Found %08x %d %d\n", key, cost1, cost2);
-        found = key;
-      }
-    }
-    // findSolution(b1, found);
-    // findSolution(b2, found);
+    DBMerge.diff(name1, name2, 1000);
   }
 
   static void testDB() {
@@ -581,17 +933,11 @@ public class Tests {
 
   /* Compare new database with old and list all new shapes found */
   static void findNewShapes() {
-    Map<Integer, Solver.Build> oldDB = ShapeFile.readMultiDB("BigData/shapes3-all.db");
-    Map<Integer, Solver.Build> newDB = ShapeFile.readMultiDB("BigData/dbout/SDB00");
-    Set<Integer> keySet = newDB.keySet();
-    keySet.removeAll(oldDB.keySet());
-    for (Integer key : keySet) {
-      // System.out.printf("%08x\n", key);
-      System.out.println(new Shape(key));
-    }
-    System.out.println("number found: " + keySet.size());
+    final String NEW_SHAPES_NAME = "BigData/newShapes.db";
+    DBMerge.Result result = DBMerge.newShapes("BigData/shapes3-all.db", "BigData/dbout/SDB00", NEW_SHAPES_NAME);
+    System.out.println("number found: " + result.onlyNew.sum());
 
-    // int[] shapes = keySet.stream().mapToInt(Integer::intValue).toArray();
+    // int[] shapes = ShapeFile.read(NEW_SHAPES_NAME, MAX_LAYERS).stream().toArray();
     // ShapeDB db = ShapeDB.open("BigData/dbout");
     // findSolution(db, shapes[0]);
     // findSolution(db, shapes[shapes.length - 1]);
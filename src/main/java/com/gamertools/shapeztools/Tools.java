@@ -1,7 +1,5 @@
 package com.gamertools.shapeztools;
 
-import java.util.Set;
-
 /**
  * Tools
  */
@@ -19,14 +17,9 @@ public class Tools {
     System.out.println();
   }
 
-  static void displayShapes(Set<Integer> shapes) {
-    int shape;
+  static void displayShapes(ShapeSet shapes) {
     System.out.println("All shapes");
-    for (long i = 0; i <= 0xffffffffl; ++i) {
-      shape = (int) i;
-      if (shapes.contains(shape))
-        System.out.println(new Shape(shape));
-    }
+    shapes.stream().forEach(shape -> System.out.println(new Shape(shape)));
     System.out.println();
   }
 